@@ -0,0 +1,28 @@
+package bg.sap.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports the allocation rate next to every score.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        // The optional argument selects the benchmarks by a regular expression, e.g. "Codec".
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "bg\\.sap\\.bench\\..*")
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                // The recipients of the broadcast only read, they do not answer heartbeats.
+                .jvmArgsAppend("-Dsimplechat.heartbeatInterval=0")
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .build();
+
+        new Runner(options).run();
+    }
+}
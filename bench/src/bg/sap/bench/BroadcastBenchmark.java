@@ -0,0 +1,225 @@
+package bg.sap.bench;
+
+import bg.sap.server.ChatServer;
+import bg.sap.utils.Message;
+import bg.sap.utils.OperationHandler;
+import bg.sap.utils.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A chat message broadcast by a running server to all logged in clients over loopback connections. An
+ * operation ends when every recipient has received the message.
+ *
+ * Every trial runs a server of its own whose accounts, history and inboxes live in a temporary directory,
+ * which is deleted after the trial. The server is not shut down, the fork ends with it. Every client takes
+ * two file descriptors.
+ * @Created by Terrax on 18.10.2026.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog, again and again and again.";
+
+    @Param({"10", "100", "1000", "10000"})
+    private int recipients;
+
+    // 0 runs the server with a reader and a writer thread per connection instead of reactors.
+    @Param({"0", "2"})
+    private int reactors;
+
+    private ChatServer server;
+    private File dataDir;
+    private SocketChannel sender;
+    private List<SocketChannel> clients;
+    private int frameLength;
+    private long expected;
+
+    // Reads and discards everything the clients receive, counting the bytes of the recipients.
+    private Selector selector;
+    private Thread drainThread;
+    private AtomicLong received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        int port = freePort();
+
+        dataDir = Files.createTempDirectory("simplechat-broadcast").toFile();
+        server = new ChatServer(port, reactors, dataDir);
+
+        Thread serverThread = new Thread(server, "ChatServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        selector = Selector.open();
+        received = new AtomicLong();
+        clients = new ArrayList<SocketChannel>();
+
+        sender = login(port, "bench-sender");
+        for (int i = 0; i < recipients; i++) {
+            clients.add(login(port, "bench-" + i));
+        }
+
+        awaitLogins();
+
+        // The sequence number is a long, so every broadcast frame has the same length.
+        frameLength = Protocol.encode(new Message(Protocol.CHAT, "bench-sender", TEXT, 0L)).remaining();
+
+        sender.configureBlocking(false);
+        sender.register(selector, SelectionKey.OP_READ);
+        for (SocketChannel client : clients) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, Boolean.TRUE);
+        }
+
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+
+        // Let the replies to the logins arrive before the counting starts.
+        Thread.sleep(500);
+        expected = received.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        drainThread.interrupt();
+        selector.wakeup();
+        drainThread.join();
+        selector.close();
+
+        sender.close();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+
+        delete(dataDir);
+    }
+
+    @Benchmark
+    public long broadcast() throws IOException {
+        ByteBuffer frame = Protocol.encode(new Message(Protocol.CHAT, TEXT));
+        while (frame.hasRemaining()) {
+            sender.write(frame);
+        }
+
+        expected += (long) recipients * frameLength;
+
+        long current;
+        while ((current = received.get()) < expected) {
+            Thread.yield();
+        }
+
+        return current;
+    }
+
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    int read;
+                    while ((read = ((SocketChannel) key.channel()).read(buffer)) > 0) {
+                        if (key.attachment() != null) {
+                            received.addAndGet(read);
+                        }
+                        buffer.clear();
+                    }
+
+                    if (read < 0) {
+                        key.cancel();
+                    }
+                }
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private static SocketChannel login(int port, String userName) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress("localhost", port));
+
+        OperationHandler.sendHandshake(socketChannel);
+        OperationHandler.sendMessage(socketChannel, new Message(Protocol.LOGIN, userName, "bench"));
+
+        return socketChannel;
+    }
+
+    /**
+     * Wait until the server has logged in all clients, new accounts are stored first.
+     */
+    private void awaitLogins() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 120000;
+
+        while (server.getMetrics().getLoggedInUsers() < recipients + 1) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only " + server.getMetrics().getLoggedInUsers() + " clients logged in");
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Delete a file or a directory with its content.
+     * @param file the file or the directory.
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        if (!file.delete()) {
+            System.out.println("Could not delete " + file);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            return serverSocket.getLocalPort();
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package bg.sap.bench;
+
+import bg.sap.utils.BufferPool;
+import bg.sap.utils.Message;
+import bg.sap.utils.MessageDecoder;
+import bg.sap.utils.OperationHandler;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of chat messages in both protocols, in memory and through a pipe.
+ * @Created by Terrax on 18.10.2026.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+    // Length of the text of the message, the largest one still fits into a frame.
+    @Param({"16", "256", "4096", "60000"})
+    private int size;
+
+    private Message message;
+    private String text;
+    private ByteBuffer frame;
+    private ByteBuffer line;
+
+    private Pipe pipe;
+    private MessageDecoder decoder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'a');
+
+        text = new String(chars);
+        message = new Message(Protocol.CHAT, "sender", text, 42L);
+        frame = Protocol.encode(message);
+        line = OperationHandler.encode("sender: " + text);
+
+        pipe = Pipe.open();
+        decoder = new MessageDecoder();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pipe.sink().close();
+        pipe.source().close();
+        decoder.release();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() {
+        return Protocol.encode(message);
+    }
+
+    /**
+     * Encode a frame into a direct buffer of the pool, as the server does before it queues a message.
+     */
+    @Benchmark
+    public int encodePooled() {
+        PooledBuffer buffer = Protocol.encode(message, BufferPool.getDefault());
+        int length = buffer.getBuffer().remaining();
+        buffer.release();
+
+        return length;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeText() {
+        return Protocol.encode(message, false);
+    }
+
+    @Benchmark
+    public Message decodeBinary() throws IOException {
+        ByteBuffer body = frame.duplicate();
+        body.position(Protocol.LENGTH_SIZE);
+
+        return Protocol.decode(body.slice());
+    }
+
+    /**
+     * Write a frame into the pipe and read it back through the decoder of a connection.
+     */
+    @Benchmark
+    public Message pipeBinary() throws IOException {
+        write(frame.duplicate());
+
+        Message received;
+        while ((received = decoder.nextFrame()) == null) {
+            decoder.read(pipe.source());
+        }
+
+        return received;
+    }
+
+    /**
+     * Write a line of the text protocol into the pipe and read it back through the decoder of a connection.
+     */
+    @Benchmark
+    public String pipeText() throws IOException {
+        write(line.duplicate());
+
+        String received;
+        while ((received = decoder.nextMessage()) == null) {
+            decoder.read(pipe.source());
+        }
+
+        return received;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        // A frame is smaller than the pipe buffer, so the blocking write returns once it is queued.
+        while (buffer.hasRemaining()) {
+            pipe.sink().write(buffer);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package bg.sap.bench;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.MessageDecoder;
+import bg.sap.utils.OperationHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending and receiving a whole file over a loopback connection with the file fragments of the server.
+ *
+ * The fragment size is read once when the constants are loaded, so every size needs a fork of its own,
+ * which is what JMH does for every parameter value by default.
+ * @Created by Terrax on 18.10.2026.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTransferBenchmark {
+    @Param({"65536", "262144", "1048576", "4194304"})
+    private int fragmentSize;
+
+    @Param({"67108864"})
+    private long fileSize;
+
+    private File dir;
+    private File source;
+
+    // Connection on which the files are sent, the peer discards what it reads.
+    private SocketChannel sendChannel;
+    private Thread drainThread;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("simplechat.chunkSize", String.valueOf(fragmentSize));
+        if (Constants.FILE_FRAGMENT_SIZE != fragmentSize) {
+            throw new IllegalStateException("Run the benchmark with forks, the fragment size is " + Constants.FILE_FRAGMENT_SIZE);
+        }
+
+        dir = new File(System.getProperty("java.io.tmpdir"), "simplechat-bench");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        source = new File(dir, "source.bin");
+        RandomAccessFile file = new RandomAccessFile(source, "rw");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            for (long written = 0; written < fileSize; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        finally {
+            file.close();
+        }
+
+        SocketChannel[] pair = connect();
+        sendChannel = pair[0];
+        sendChannel.configureBlocking(false);
+
+        final SocketChannel drainChannel = pair[1];
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+                try {
+                    while (drainChannel.read(buffer) >= 0) {
+                        buffer.clear();
+                    }
+                }
+                catch (IOException exception) {
+                    // The connection has been closed by the tear down.
+                }
+            }
+        }, "Drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sendChannel.close();
+
+        if (!source.delete()) {
+            System.out.println("Could not delete " + source);
+        }
+    }
+
+    /**
+     * Send a file a fragment at a time, like the server does on the writable events of a download.
+     */
+    @Benchmark
+    public long sendFile() throws IOException {
+        FileChannel fileChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        FileChannelHelper fileChannelHelper = new FileChannelHelper(fileSize, fileChannel);
+
+        long sent = 0;
+        while (fileChannel.isOpen()) {
+            long bytes = OperationHandler.sendFile(sendChannel, fileChannelHelper);
+
+            // The socket is full, the peer is reading.
+            if (bytes == 0) {
+                Thread.yield();
+            }
+            sent += bytes;
+        }
+
+        return sent;
+    }
+
+    /**
+     * Receive a file into its partial file, like the server does on the readable events of an upload. Every
+     * upload ends its connection, so every operation gets a new one.
+     */
+    @Benchmark
+    public boolean getFile(Upload upload) throws IOException {
+        boolean complete = false;
+
+        while (!complete) {
+            upload.selector.select();
+            upload.selector.selectedKeys().clear();
+
+            complete = OperationHandler.getFile(upload.key, upload.decoder, upload.fileChannelHelper);
+        }
+
+        return complete;
+    }
+
+    /**
+     * A connection on which a file arrives, written by a thread of its own.
+     */
+    @State(Scope.Thread)
+    public static class Upload {
+        private Selector selector;
+        private SelectionKey key;
+        private MessageDecoder decoder;
+        private FileChannelHelper fileChannelHelper;
+        private File target;
+        private Thread writerThread;
+
+        @Setup(Level.Invocation)
+        public void setUp(FileTransferBenchmark benchmark) throws IOException {
+            SocketChannel[] pair = connect();
+            final SocketChannel writeChannel = pair[0];
+            final long size = benchmark.fileSize;
+
+            pair[1].configureBlocking(false);
+            selector = Selector.open();
+            key = pair[1].register(selector, SelectionKey.OP_READ);
+            decoder = new MessageDecoder();
+
+            target = new File(benchmark.dir, "target.bin");
+            fileChannelHelper = OperationHandler.openPartialFile(target, size, 0);
+
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+                    try {
+                        for (long written = 0; written < size; ) {
+                            buffer.clear();
+                            buffer.limit((int) Math.min(buffer.capacity(), size - written));
+                            written += writeChannel.write(buffer);
+                        }
+                    }
+                    catch (IOException exception) {
+                        exception.printStackTrace();
+                    }
+                    finally {
+                        try {
+                            writeChannel.close();
+                        }
+                        catch (IOException exception) {
+                            exception.printStackTrace();
+                        }
+                    }
+                }
+            }, "Writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException, InterruptedException {
+            writerThread.join();
+            selector.close();
+            decoder.release();
+
+            File partialFile = OperationHandler.getPartialFile(target);
+            if (!partialFile.delete()) {
+                System.out.println("Could not delete " + partialFile);
+            }
+        }
+    }
+
+    /**
+     * Open a loopback connection.
+     * @return the client and the server side of the connection.
+     * @throws IOException
+     */
+    private static SocketChannel[] connect() throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+
+        try {
+            serverSocketChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel client = SocketChannel.open(serverSocketChannel.getLocalAddress());
+            SocketChannel server = serverSocketChannel.accept();
+
+            return new SocketChannel[] {client, server};
+        }
+        finally {
+            serverSocketChannel.close();
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package bg.sap.client;
 
 import bg.sap.utils.Constants;
-import bg.sap.utils.FileChannelHelper;
-import bg.sap.utils.OperationHandler;
+import bg.sap.utils.Message;
+import bg.sap.utils.Protocol;
 import bg.sap.utils.User;
 
 import javax.swing.*;
@@ -10,27 +10,22 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.channels.*;
 import java.util.*;
 
 /**
  * @Created by Terrax on 15.3.2015.
  */
 
-public class ChatClient extends JFrame implements Runnable, ActionListener {
-    private String host;
+public class ChatClient extends JFrame implements Runnable, ActionListener, ClientListener {
+    // Sequence number of the latest chat message shown, the history is replayed from it after a login.
+    private long lastSequence;
 
-    // File sending fields.
-    private boolean connectedToServer;
-    private boolean downloadRequest;
-    private FileChannelHelper fileChannelHelper;
-    private SelectionKey transferKey;
-    private String fileName;
+    // Rooms which the user has joined, in the order of joining.
+    private Set<String> rooms;
 
-    // NIO fields.
-    private SocketChannel socketChannel;
-    private Selector selector;
+    // The engine runs the connection to the server on the thread of the client.
+    private ClientEngine engine;
+    private ClientConnection connection;
 
     // GUI fields.
     private JButton sendMsgButton;
@@ -44,40 +39,20 @@ public class ChatClient extends JFrame implements Runnable, ActionListener {
     private JPanel mainPanel;
     private JFileChooser fileChooser;
 
-    // File transfer fields.
-    private SocketChannel fileSendingChannel;
-
     public ChatClient(String host) {
-        this.host = host;
-        connectedToServer = false;
-        downloadRequest = false;
+        rooms = new LinkedHashSet<String>();
         System.out.println("Starting client");
 
         initGUI();
 
         try {
-            initClient(host, Constants.PORT);
+            engine = new ClientEngine();
+            connection = engine.connect(host, Constants.PORT, this);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    /**
-     * Initialize the client and connect to a server.
-     * @param host the host name of the server.
-     * @param port the port of the server.
-     * @throws IOException
-     */
-    private void initClient(String host, int port) throws IOException {
-        socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-
-        selector = Selector.open();
-
-        socketChannel.connect(new InetSocketAddress(host, port));
-        socketChannel.register(selector, SelectionKey.OP_CONNECT);
-    }
-
     /**
      * Initiates the client interface.
      */
@@ -160,9 +135,8 @@ public class ChatClient extends JFrame implements Runnable, ActionListener {
 
     /**
      * Asks the user for credentials and sends them to the server.
-     * @throws IOException
      */
-    private void sendCredentialsToServer() throws IOException {
+    private void sendCredentialsToServer() {
         JPanel panel = new JPanel(new BorderLayout(5, 5));
 
         JPanel labels = new JPanel(new GridLayout(0, 1, 2, 2));
@@ -191,48 +165,49 @@ public class ChatClient extends JFrame implements Runnable, ActionListener {
 
         User user = new User(username, password);
 
-        OperationHandler.sendData(socketChannel, user.toString());
+        connection.login(user.getUserName(), user.getUserPass());
     }
 
     /**
      * Logs the user out from the server.
-     * @throws IOException
      */
-    private void logout() throws IOException {
-        String logout = "*Logout";
-        OperationHandler.sendData(socketChannel, logout);
+    private void logout() {
+        connection.logout();
 
         this.dispose();
     }
 
     /**
-     * Sends the chat message to the server.
-     * @throws IOException
+     * Sends the chat message to the server. Room commands go to the server as such, e.g. "#room text" is
+     * sent to the members of the room only.
      */
-    private void sendMsg() throws IOException {
+    private void sendMsg() {
         String text = textField.getText();
         textField.setText("");
         text = text.trim();
 
-        OperationHandler.sendData(socketChannel, text);
+        Message command = Protocol.parseCommand(text);
+
+        connection.send(command != null ? command : new Message(Protocol.CHAT, text));
     }
 
     /**
-     * Open a channel used for transmitting files.
-     * @throws IOException
+     * Show the joined rooms in the title of the window.
      */
-    private void openFileSendingChannel() throws IOException {
-        fileSendingChannel = SocketChannel.open();
-        fileSendingChannel.configureBlocking(false);
-        fileSendingChannel.connect(new InetSocketAddress(host, Constants.PORT));
-        fileSendingChannel.register(selector, SelectionKey.OP_CONNECT);
+    private void updateTitle() {
+        StringBuilder title = new StringBuilder("NIO Chat Client");
+
+        for (String room : rooms) {
+            title.append(" #").append(room);
+        }
+
+        this.setTitle(title.toString());
     }
 
     /**
-     * Sends the selected file to the server.
-     * @throws IOException
+     * Asks the user for a file and sends it to the server.
      */
-    private void sendFile() throws IOException {
+    private void sendFile() {
         fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(new File("."));
         fileChooser.setDialogTitle("Browse the file to send");
@@ -240,103 +215,90 @@ public class ChatClient extends JFrame implements Runnable, ActionListener {
         fileChooser.setAcceptAllFileFilterUsed(true);
 
         int returnVal = fileChooser.showOpenDialog(this);
-        if (returnVal == JFileChooser.APPROVE_OPTION) {
-            OperationHandler.sendFile(fileChooser.getSelectedFile(), fileSendingChannel);
+        if (returnVal != JFileChooser.APPROVE_OPTION) {
+            return;
         }
+
+        connection.upload(fileChooser.getSelectedFile());
     }
 
-    /**
-     * Send command to the server that a user wants to download a file.
-     * @throws IOException
-     */
-    private void downloadFile() throws IOException {
-        OperationHandler.sendData(fileSendingChannel, Constants.FILE_DOWNLOAD + "-" + fileName);
-        fileSendingChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+    private void showText(String text) {
+        textPane.setText(textPane.getText() + text + "\n");
     }
 
     @Override
     public void run() {
-        while (true) {
-            try {
-                // Get ready channels.
-                int readyChannels = selector.select();
-                if (readyChannels == 0) continue;
-
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-                // Handle events.
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-
-                    // Finish connection for the ready channels.
-                    if (key.isConnectable()) {
-                        SocketChannel sockChannel = (SocketChannel) key.channel();
-                        sockChannel.finishConnect();
-
-                        // File sending channel.
-                        if (connectedToServer == true) {
-                            if (downloadRequest) {
-                                downloadFile();
-                                downloadRequest = false;
-                            }
-                            else {
-                                sendFile();
-                            }
-                        }
-                        // Chat channel.
-                        else {
-                            sockChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-
-                            // Login to the server.
-                            sendCredentialsToServer();
-                            connectedToServer = true;
-                        }
-                    }
-                    // Client has sent data.
-                    else if (key.isReadable()) {
-                        // Download file.
-                        if (key == transferKey) {
-                            OperationHandler.getFile(key, fileChannelHelper);
-                        }
-                        else {
-                            // Read data.
-                            String output = OperationHandler.readData((SocketChannel) key.channel());
-
-                            // The server is sending a file.
-                            if (output.contains(Constants.FILE_UPLOAD)) {
-                                String[] fileData = output.split("-");
-
-                                File file = new File(fileData[1]);
-
-                                file.createNewFile();
-
-                                FileOutputStream fileOutputStream = new FileOutputStream(file);
-                                FileChannel fileChannel = fileOutputStream.getChannel();
-                                fileChannelHelper = new FileChannelHelper(Long.parseLong(fileData[2]), fileChannel);
-
-                                transferKey = key;
-                            }
-                            // Server did not find requested file.
-                            else if (output.contains(Constants.FILE_NOT_FOUND)) {
-                                textPane.setText(textPane.getText() + " File not found\n");
-                                fileSendingChannel.close();
-                                key.cancel();
-                                transferKey = null;
-                            }
-                            else {
-                                textPane.setText(textPane.getText() + output + "\n");
-                            }
-                        }
-                    }
-                    keyIterator.remove();
+        engine.run();
+    }
+
+    @Override
+    public void connected(ClientConnection connection) {
+        // Login to the server.
+        sendCredentialsToServer();
+    }
+
+    /**
+     * Handle a single message received from the server on the chat channel.
+     * @param connection the chat connection.
+     * @param message the received message.
+     */
+    @Override
+    public void messageReceived(ClientConnection connection, Message message) {
+        String output = Protocol.formatText(message);
+
+        if (output != null) {
+            showText(output);
+        }
+
+        switch (message.getOpcode()) {
+            // Replay what was missed since the last message shown, or the latest messages at the first login.
+            case Protocol.LOGIN_OK:
+                connection.send(new Message(Protocol.HISTORY,
+                        lastSequence > 0 ? lastSequence : -1L, (long) Constants.HISTORY_REPLAY_COUNT));
+                break;
+            case Protocol.CHAT:
+                if (message.getFieldCount() > 2) {
+                    lastSequence = Math.max(lastSequence, message.getLong(2));
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                break;
+            case Protocol.HISTORY_ENTRY:
+            case Protocol.HISTORY_END:
+                lastSequence = Math.max(lastSequence, message.getLong(0));
+                break;
+            case Protocol.JOIN:
+                rooms.add(message.getString(0));
+                updateTitle();
+                break;
+            case Protocol.LEAVE:
+                rooms.remove(message.getString(0));
+                updateTitle();
+                break;
+            // Ask for the next page of the file list, which continues after the last listed file.
+            case Protocol.FILE_LIST:
+                if (message.getLong(0) == 1 && message.getFieldCount() > 1) {
+                    connection.requestFileList(message.getString(message.getFieldCount() - 3));
+                }
+                break;
         }
     }
 
+    @Override
+    public void transferCompleted(ClientConnection connection, FileTransfer fileTransfer) {
+        if (fileTransfer.getDirection() == FileTransfer.DOWNLOAD) {
+            showText("Downloaded " + fileTransfer.getFile().getName());
+        }
+    }
+
+    @Override
+    public void transferFailed(ClientConnection connection, FileTransfer fileTransfer, String reason) {
+        showText(fileTransfer.getFile().getName() + ": " + reason);
+    }
+
+    @Override
+    public void disconnected(ClientConnection connection) {
+        showText("Disconnected from the server");
+    }
+
     /**
      * Invoked when an action occurs.
      * @param e the event that happened.
@@ -344,41 +306,23 @@ public class ChatClient extends JFrame implements Runnable, ActionListener {
     @Override
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == sendMsgButton) {
-            try {
-                sendMsg();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
+            sendMsg();
         }
         else if (e.getSource() == logoutButton) {
-            try {
-                logout();
-            } catch (IOException exception) {
-                exception.printStackTrace();
-            }
+            logout();
         }
         else if (e.getSource() == sendFileButton) {
-            try {
-                openFileSendingChannel();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
+            sendFile();
         }
         else if (e.getSource() == getFileButton) {
-            fileName = JOptionPane.showInputDialog(this, "Enter file name");
-            try {
-                openFileSendingChannel();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+            String fileName = JOptionPane.showInputDialog(this, "Enter file name");
+
+            if (fileName != null && !fileName.trim().equals("")) {
+                connection.download(new File(fileName.trim()));
             }
-            downloadRequest = true;
         }
         else if (e.getSource() == getFileListButton) {
-            try {
-                OperationHandler.sendData(socketChannel, Constants.GET_FILE_LIST);
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            }
+            connection.requestFileList("");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,605 @@
+package bg.sap.client;
+
+import bg.sap.utils.BufferPool;
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileAssembly;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.FileStream;
+import bg.sap.utils.FileStreams;
+import bg.sap.utils.Message;
+import bg.sap.utils.MessageDecoder;
+import bg.sap.utils.OperationHandler;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A chat connection to the server, driven by a client engine. Messages may be sent from any thread, the
+ * engine writes them. Files up to the parallel threshold are transferred as numbered streams on the same
+ * connection, their chunks go out between the messages.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ClientConnection {
+    private ClientEngine engine;
+    private String host;
+    private int port;
+    private ClientListener listener;
+
+    private SocketChannel socketChannel;
+    private SelectionKey key;
+    private MessageDecoder decoder;
+
+    // Data which could not be written yet, in order. Any thread may add, only the engine writes.
+    // The buffers are released once they have been written.
+    private Queue<PooledBuffer> writeQueue;
+    private AtomicBoolean flushScheduled;
+    private volatile boolean closed;
+
+    // Transfers which run as file streams, by stream id. Used by the engine thread only.
+    private Map<Long, FileTransfer> streamTransfers;
+    private FileStreams fileStreams;
+    private long nextStreamId;
+
+    ClientConnection(ClientEngine engine, String host, int port, ClientListener listener) {
+        this.engine = engine;
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.decoder = new MessageDecoder();
+        this.writeQueue = new ConcurrentLinkedQueue<PooledBuffer>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.streamTransfers = new HashMap<Long, FileTransfer>();
+        this.fileStreams = new FileStreams();
+    }
+
+    public ClientEngine getEngine() {
+        return engine;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ClientListener getListener() {
+        return listener;
+    }
+
+    public boolean isConnected() {
+        return key != null && key.isValid() && socketChannel.isConnected();
+    }
+
+    /**
+     * Log in, a new user gets an account.
+     * @param userName the name of the user.
+     * @param password the password of the user.
+     */
+    public void login(String userName, String password) {
+        send(new Message(Protocol.LOGIN, userName, password));
+    }
+
+    public void logout() {
+        send(new Message(Protocol.LOGOUT));
+    }
+
+    /**
+     * Request a page of the list of files stored on the server.
+     * @param after the name of the last file of the previous page, empty for the first page.
+     */
+    public void requestFileList(String after) {
+        send(new Message(Protocol.GET_FILE_LIST, "", after, (long) Constants.FILE_LIST_PAGE_SIZE));
+    }
+
+    /**
+     * Send a file to the server. Large files are sent in ranges over several connections, others as a stream
+     * of this connection.
+     * @param file the file to send.
+     */
+    public void upload(File file) {
+        long size = file.length();
+
+        if (size >= Constants.PARALLEL_TRANSFER_THRESHOLD && Constants.TRANSFER_STREAMS > 1) {
+            for (long[] range : FileAssembly.split(size, Constants.TRANSFER_STREAMS)) {
+                startTransfer(new FileTransfer(FileTransfer.UPLOAD, file, range[0], range[1]));
+            }
+        }
+        else {
+            startStream(new FileTransfer(FileTransfer.UPLOAD, file));
+        }
+    }
+
+    /**
+     * Get a file from the server as a stream of this connection. Large files continue in ranges over several
+     * connections once the server has told their size.
+     * @param file the local file, the server file has the same name.
+     */
+    public void download(File file) {
+        startStream(new FileTransfer(FileTransfer.DOWNLOAD, file));
+    }
+
+    /**
+     * Start a file transfer on a connection of its own.
+     * @param fileTransfer the transfer.
+     */
+    void startTransfer(FileTransfer fileTransfer) {
+        fileTransfer.setConnection(this);
+        engine.requestTransfer(fileTransfer);
+    }
+
+    /**
+     * Start a file transfer as a stream of this connection. The server answers with the offset to start at.
+     * @param fileTransfer the transfer.
+     */
+    void startStream(final FileTransfer fileTransfer) {
+        fileTransfer.setConnection(this);
+
+        engine.execute(new Runnable() {
+            @Override
+            public void run() {
+                openStream(fileTransfer);
+            }
+        });
+    }
+
+    /**
+     * Ask the server to open a file stream. Called by the engine.
+     * @param fileTransfer the transfer.
+     */
+    private void openStream(FileTransfer fileTransfer) {
+        if (closed) {
+            listener.transferFailed(this, fileTransfer, "Connection closed");
+            return;
+        }
+
+        long id = ++nextStreamId;
+        File file = fileTransfer.getFile();
+
+        fileTransfer.setStreamId(id);
+        streamTransfers.put(id, fileTransfer);
+
+        // An upload resumes where the server's partial file ends, a download where the local one ends.
+        if (fileTransfer.getDirection() == FileTransfer.UPLOAD) {
+            send(new Message(Protocol.STREAM_OPEN, id, Protocol.STREAM_UPLOAD, file.getName(), file.length(), 0L));
+        }
+        else {
+            send(new Message(Protocol.STREAM_OPEN, id, Protocol.STREAM_DOWNLOAD, file.getName(), 0L,
+                    OperationHandler.getPartialFile(file).length()));
+        }
+    }
+
+    /**
+     * Send a message to the server in the binary protocol.
+     * @param message the message to send.
+     */
+    public void send(Message message) {
+        send(Protocol.encode(message, BufferPool.getDefault()));
+    }
+
+    /**
+     * Queue data for the server. The engine writes it right away when called on its thread.
+     * @param buffer the data to send.
+     */
+    public void send(ByteBuffer buffer) {
+        send(PooledBuffer.wrap(buffer));
+    }
+
+    /**
+     * Queue data for the server. The engine writes it right away when called on its thread and releases the
+     * buffer once it has been written.
+     * @param buffer the data to send.
+     */
+    public void send(PooledBuffer buffer) {
+        writeQueue.add(buffer);
+
+        // The connection may have been closed meanwhile, then nobody writes the queue.
+        if (closed) {
+            releaseQueue();
+            return;
+        }
+
+        if (engine.inEngineThread()) {
+            flushQuietly();
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            engine.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    flushQuietly();
+                }
+            });
+        }
+    }
+
+    /**
+     * Close the connection. Called by the engine.
+     */
+    public void close() {
+        closed = true;
+        releaseQueue();
+        decoder.release();
+
+        for (FileStream stream : fileStreams.removeAll()) {
+            closeStream(stream);
+        }
+
+        // The transfers of the streams end with the connection, a partial download is resumed later.
+        List<FileTransfer> transfers = new ArrayList<FileTransfer>(streamTransfers.values());
+        streamTransfers.clear();
+
+        for (FileTransfer fileTransfer : transfers) {
+            listener.transferFailed(this, fileTransfer, "Connection closed");
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Open the channel and start connecting. Called by the engine.
+     * @throws IOException
+     */
+    void open() throws IOException {
+        socketChannel = SocketChannel.open();
+        socketChannel.configureBlocking(false);
+        socketChannel.connect(new InetSocketAddress(host, port));
+
+        key = socketChannel.register(engine.getSelector(), SelectionKey.OP_CONNECT, this);
+    }
+
+    /**
+     * Complete the connection and announce the binary protocol. Called by the engine.
+     * @throws IOException
+     */
+    void finishConnect() throws IOException {
+        socketChannel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+
+        writeQueue.add(PooledBuffer.wrap(ByteBuffer.wrap(Protocol.MAGIC)));
+        flush();
+
+        listener.connected(this);
+    }
+
+    /**
+     * Read the data which the server has sent and hand the messages to the listener. Called by the engine.
+     * @return false if the server has closed the connection.
+     * @throws IOException
+     */
+    boolean read() throws IOException {
+        int readBytes = decoder.read(socketChannel);
+
+        Message message;
+        while (key.isValid() && (message = decoder.nextFrame()) != null) {
+            // Heartbeats of the server are answered here, the listener never sees them.
+            if (message.getOpcode() == Protocol.PING) {
+                send(new Message(Protocol.PONG));
+                continue;
+            }
+
+            // The file streams report to the listener once their transfers have ended.
+            if (handleStreamMessage(message)) {
+                continue;
+            }
+
+            listener.messageReceived(this, message);
+        }
+
+        return readBytes != -1;
+    }
+
+    /**
+     * Handle a message of a file stream. Called by the engine.
+     * @param message the received message.
+     * @return false if the message does not belong to a stream.
+     * @throws IOException
+     */
+    private boolean handleStreamMessage(Message message) throws IOException {
+        switch (message.getOpcode()) {
+            // The server has opened a stream.
+            case Protocol.STREAM_OPEN:
+                streamOpened(message.getLong(0), message.getLong(3), message.getLong(4));
+                return true;
+            // A chunk of a file which is downloaded.
+            case Protocol.STREAM_DATA:
+                receiveStream(message.getLong(0), message.getBytes(1));
+                return true;
+            // The server grants an upload more data.
+            case Protocol.STREAM_WINDOW: {
+                FileStream stream = fileStreams.get(message.getLong(0));
+
+                if (stream != null && stream.isSending()) {
+                    stream.addWindow(message.getLong(1));
+                    flush();
+                }
+                return true;
+            }
+            // The server has stored an upload, or could not open or store a file.
+            case Protocol.STREAM_END:
+                endStream(message.getLong(0), message.getLong(1));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Start sending or receiving a stream which the server has opened.
+     * @param id the id of the stream.
+     * @param size the size of the file.
+     * @param offset the position at which the stream starts.
+     * @throws IOException
+     */
+    private void streamOpened(long id, long size, long offset) throws IOException {
+        FileTransfer fileTransfer = streamTransfers.get(id);
+        if (fileTransfer == null) {
+            return;
+        }
+
+        File file = fileTransfer.getFile();
+        boolean upload = fileTransfer.getDirection() == FileTransfer.UPLOAD;
+
+        // A large file is received in ranges over several connections, the data which the server has already
+        // sent on the stream is dropped.
+        if (!upload && size >= Constants.PARALLEL_TRANSFER_THRESHOLD && Constants.TRANSFER_STREAMS > 1) {
+            streamTransfers.remove(id);
+            send(new Message(Protocol.STREAM_END, id, Protocol.STREAM_FAILED));
+            startTransfer(fileTransfer);
+            return;
+        }
+
+        FileChannelHelper fileChannelHelper;
+        try {
+            if (upload) {
+                fileChannelHelper = new FileChannelHelper(file, size, offset, new FileInputStream(file).getChannel());
+            }
+            else {
+                fileChannelHelper = OperationHandler.openPartialFile(file, size, offset);
+            }
+        }
+        catch (IOException exception) {
+            streamTransfers.remove(id);
+            send(new Message(Protocol.STREAM_END, id, Protocol.STREAM_FAILED));
+            listener.transferFailed(this, fileTransfer, exception.toString());
+            return;
+        }
+
+        FileStream stream = new FileStream(id, upload, fileChannelHelper);
+        fileTransfer.setFileChannelHelper(fileChannelHelper);
+
+        // Nothing is left to transfer, the server ends an upload once it has stored it.
+        if (stream.isComplete()) {
+            if (upload) {
+                closeStream(stream);
+            }
+            else {
+                completeDownload(stream);
+            }
+            return;
+        }
+
+        fileStreams.add(stream);
+
+        if (upload) {
+            flush();
+        }
+    }
+
+    /**
+     * Store a chunk of a download and grant the server more data.
+     * @param id the id of the stream.
+     * @param data the chunk.
+     * @throws IOException if the server has sent more than it may.
+     */
+    private void receiveStream(long id, ByteBuffer data) throws IOException {
+        FileStream stream = fileStreams.get(id);
+
+        // The chunk of a stream which has been ended meanwhile.
+        if (stream == null || stream.isSending()) {
+            return;
+        }
+
+        stream.receive(data);
+
+        if (stream.isComplete()) {
+            fileStreams.remove(id);
+            completeDownload(stream);
+            return;
+        }
+
+        long grant = stream.takeGrant();
+        if (grant > 0) {
+            send(new Message(Protocol.STREAM_WINDOW, id, grant));
+        }
+    }
+
+    /**
+     * Give a downloaded file its name and tell the listener.
+     * @param stream the stream whose last byte has been stored.
+     */
+    private void completeDownload(FileStream stream) {
+        FileTransfer fileTransfer = streamTransfers.remove(stream.getId());
+
+        try {
+            OperationHandler.finishFile(stream.getFileChannelHelper());
+            OperationHandler.completePartialFile(stream.getFileChannelHelper());
+        }
+        catch (IOException exception) {
+            closeStream(stream);
+            listener.transferFailed(this, fileTransfer, exception.toString());
+            return;
+        }
+
+        listener.transferCompleted(this, fileTransfer);
+    }
+
+    /**
+     * End a stream which the server has ended.
+     * @param id the id of the stream.
+     * @param status the outcome, see Protocol.STREAM_OK.
+     */
+    private void endStream(long id, long status) {
+        FileStream stream = fileStreams.remove(id);
+        FileTransfer fileTransfer = streamTransfers.remove(id);
+
+        if (stream != null) {
+            closeStream(stream);
+        }
+
+        if (fileTransfer == null) {
+            return;
+        }
+
+        if (status == Protocol.STREAM_OK) {
+            listener.transferCompleted(this, fileTransfer);
+        }
+        else {
+            listener.transferFailed(this, fileTransfer,
+                    status == Protocol.STREAM_NOT_FOUND ? Constants.FILE_NOT_FOUND : "Transfer failed");
+        }
+    }
+
+    /**
+     * Cancel a stream whose file can not be read and tell the listener.
+     * @param stream the stream.
+     * @param reason the reason of the failure.
+     */
+    private void failStream(FileStream stream, String reason) {
+        fileStreams.remove(stream.getId());
+        closeStream(stream);
+
+        FileTransfer fileTransfer = streamTransfers.remove(stream.getId());
+        send(new Message(Protocol.STREAM_END, stream.getId(), Protocol.STREAM_FAILED));
+
+        if (fileTransfer != null) {
+            listener.transferFailed(this, fileTransfer, reason);
+        }
+    }
+
+    private static void closeStream(FileStream stream) {
+        try {
+            stream.close();
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Queue the next chunk of the uploads, which take turns.
+     * @return false if no upload may send.
+     */
+    private boolean queueChunk() {
+        FileStream stream;
+        PooledBuffer chunk;
+
+        while ((stream = fileStreams.nextReady()) != null) {
+            try {
+                chunk = stream.nextChunk(BufferPool.getDefault());
+            }
+            catch (IOException exception) {
+                failStream(stream, exception.toString());
+                continue;
+            }
+
+            if (chunk == null) {
+                continue;
+            }
+
+            writeQueue.add(chunk);
+
+            // The upload ends once the server has stored the file.
+            if (stream.isComplete()) {
+                fileStreams.remove(stream.getId());
+                closeStream(stream);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Write the queued data until the queue is empty or the socket is full, then the chunks of the uploads.
+     * A chunk is only taken once the messages have been written, so it holds a message back for one write
+     * at most. Called by the engine.
+     * @throws IOException
+     */
+    void flush() throws IOException {
+        // The queue is written once the connection has been established.
+        if (key == null || !key.isValid() || !socketChannel.isConnected()) {
+            return;
+        }
+
+        while (true) {
+            PooledBuffer head = writeQueue.peek();
+
+            if (head == null) {
+                if (!queueChunk()) {
+                    break;
+                }
+                continue;
+            }
+
+            socketChannel.write(head.getBuffer());
+
+            // The socket is full, wait until it is writable again.
+            if (head.getBuffer().hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            writeQueue.poll().release();
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Release the buffers of the queue, whoever removes a buffer releases it.
+     */
+    private void releaseQueue() {
+        PooledBuffer buffer;
+
+        while ((buffer = writeQueue.poll()) != null) {
+            buffer.release();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        }
+        catch (IOException exception) {
+            engine.disconnect(this);
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package bg.sap.client;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileAssembly;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.Message;
+import bg.sap.utils.MessageDecoder;
+import bg.sap.utils.OperationHandler;
+import bg.sap.utils.Protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector loop of the client without a user interface. A single engine thread serves any number of chat
+ * connections and their file transfers, and reports their events to the listeners of the connections.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ClientEngine implements Runnable {
+    private Selector selector;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    // Work handed over by other threads, executed by the engine thread.
+    private Queue<Runnable> tasks;
+    private AtomicBoolean wakeupPending;
+
+    public ClientEngine() throws IOException {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.running = true;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Check if the caller runs on the thread of the engine.
+     * @return true if the current thread is the engine thread, false otherwise.
+     */
+    public boolean inEngineThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Open a chat connection. The listener learns when it has been established.
+     * @param host the host name of the server.
+     * @param port the port of the server.
+     * @param listener receives the events of the connection.
+     * @return the connection.
+     */
+    public ClientConnection connect(String host, int port, ClientListener listener) {
+        final ClientConnection connection = new ClientConnection(this, host, port, listener);
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.open();
+                }
+                catch (IOException exception) {
+                    disconnect(connection);
+                }
+            }
+        });
+
+        return connection;
+    }
+
+    /**
+     * Run a task on the engine thread.
+     * @param task the task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stop the engine and close its connections.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Open the channel of a file transfer.
+     * @param fileTransfer the transfer to start.
+     */
+    void requestTransfer(final FileTransfer fileTransfer) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ClientConnection connection = fileTransfer.getConnection();
+
+                try {
+                    SocketChannel fileSendingChannel = SocketChannel.open();
+                    fileSendingChannel.configureBlocking(false);
+                    fileSendingChannel.connect(new InetSocketAddress(connection.getHost(), connection.getPort()));
+                    fileSendingChannel.register(selector, SelectionKey.OP_CONNECT, fileTransfer);
+                }
+                catch (IOException exception) {
+                    connection.getListener().transferFailed(connection, fileTransfer, exception.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Close a chat connection and tell its listener.
+     * @param connection the connection.
+     */
+    void disconnect(ClientConnection connection) {
+        connection.close();
+        connection.getListener().disconnected(connection);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+
+        while (running) {
+            try {
+                // Get ready channels.
+                selector.select();
+                wakeupPending.set(false);
+                runTasks();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                // Handle events.
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    // A task may have closed the connection of the key, e.g. when it has timed out.
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.attachment() instanceof FileTransfer) {
+                        handleTransferKey(key);
+                    }
+                    else {
+                        handleConnectionKey(key);
+                    }
+                }
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+            // The engine serves every connection of the client, it must survive a bug in the work of any of them.
+            catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof FileTransfer) {
+                ((FileTransfer) key.attachment()).releaseDecoder();
+            }
+
+            try {
+                key.channel().close();
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        try {
+            selector.close();
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handle the readiness of a chat connection. A failure which is not an I/O error, e.g. in a listener,
+     * closes the connection, the other connections go on.
+     * @param key the selection key of the connection.
+     */
+    private void handleConnectionKey(SelectionKey key) {
+        ClientConnection connection = (ClientConnection) key.attachment();
+
+        try {
+            // Finish the connection, the listener logs in.
+            if (key.isConnectable()) {
+                connection.finishConnect();
+                return;
+            }
+            // The server has sent data.
+            if (key.isReadable() && !connection.read()) {
+                disconnect(connection);
+                return;
+            }
+            // The socket can take more of the queued data.
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        }
+        catch (IOException exception) {
+            disconnect(connection);
+        }
+        catch (RuntimeException exception) {
+            exception.printStackTrace();
+
+            if (key.isValid()) {
+                disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * Handle the readiness of a file transfer channel. A failure which is not an I/O error fails the transfer,
+     * the other transfers and connections go on.
+     * @param key the selection key of the transfer channel.
+     */
+    private void handleTransferKey(SelectionKey key) {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+
+        try {
+            if (key.isConnectable()) {
+                ((SocketChannel) key.channel()).finishConnect();
+                startTransfer(key);
+            }
+            else {
+                handleTransfer(key);
+            }
+        }
+        catch (IOException exception) {
+            failTransfer(key, exception.toString());
+        }
+        catch (RuntimeException exception) {
+            exception.printStackTrace();
+
+            if (key.isValid()) {
+                failTransfer(key, exception.toString());
+            }
+        }
+    }
+
+    /**
+     * Send the first command of a file transfer on its newly connected channel.
+     * @param key the selection key of the transfer channel.
+     * @throws IOException
+     */
+    private void startTransfer(SelectionKey key) throws IOException {
+        SocketChannel fileSendingChannel = (SocketChannel) key.channel();
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+        String name = fileTransfer.getFile().getName();
+
+        OperationHandler.sendHandshake(fileSendingChannel);
+
+        if (fileTransfer.getDirection() == FileTransfer.UPLOAD) {
+            // A range of a large file is sent right away.
+            if (fileTransfer.isRange()) {
+                startUpload(key, fileTransfer.getOffset());
+            }
+            // Ask how much of the file the server already has, the upload starts with the answer.
+            else {
+                OperationHandler.sendMessage(fileSendingChannel, new Message(Protocol.FILE_OFFSET, name));
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        else {
+            // A range of a large file is requested right away.
+            if (fileTransfer.isRange()) {
+                OperationHandler.sendMessage(fileSendingChannel,
+                        new Message(Protocol.FILE_DOWNLOAD, name, fileTransfer.getOffset(), fileTransfer.getLength()));
+            }
+            // Ask for the size of the file first, to decide how to download it.
+            else {
+                OperationHandler.sendMessage(fileSendingChannel, new Message(Protocol.FILE_INFO, name));
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Send the upload command and start sending the file from the given offset.
+     * @param key the selection key of the upload channel.
+     * @param offset the number of bytes the server already has or the start of the range.
+     * @throws IOException
+     */
+    private void startUpload(SelectionKey key, long offset) throws IOException {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+        File uploadFile = fileTransfer.getFile();
+
+        FileInputStream fileInputStream = new FileInputStream(uploadFile);
+        FileChannel fileChannel = fileInputStream.getChannel();
+        long size = fileChannel.size();
+
+        // A partial file which does not fit the local file is sent again.
+        if (offset > size) {
+            offset = 0;
+        }
+
+        // Send the upload command, file name, file size, offset and the length of a range.
+        Message message;
+        long end;
+        if (fileTransfer.isRange()) {
+            message = new Message(Protocol.FILE_UPLOAD, uploadFile.getName(), size, offset, fileTransfer.getLength());
+            end = offset + fileTransfer.getLength();
+        }
+        else {
+            message = new Message(Protocol.FILE_UPLOAD, uploadFile.getName(), size, offset);
+            end = size;
+        }
+        OperationHandler.sendMessage((SocketChannel) key.channel(), message);
+
+        // The data is sent whenever the channel is writable.
+        fileTransfer.setFileChannelHelper(new FileChannelHelper(uploadFile, end, offset, fileChannel));
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Start the download of a file once its size is known. Large files are received in ranges over several
+     * connections, otherwise a partial file of an interrupted download is continued.
+     * @param key the selection key of the download channel.
+     * @param size the size of the file.
+     * @throws IOException
+     */
+    private void startDownload(SelectionKey key, long size) throws IOException {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+        File file = fileTransfer.getFile();
+        SocketChannel fileSendingChannel = (SocketChannel) key.channel();
+
+        if (size >= Constants.PARALLEL_TRANSFER_THRESHOLD && Constants.TRANSFER_STREAMS > 1) {
+            FileAssembly assembly = FileAssembly.open(file, size);
+            long[][] ranges = FileAssembly.split(size, Constants.TRANSFER_STREAMS);
+
+            // This channel receives the first range, new channels receive the others.
+            fileTransfer.setAssembly(assembly);
+            fileTransfer.setRange(ranges[0][0], ranges[0][1]);
+            OperationHandler.sendMessage(fileSendingChannel,
+                    new Message(Protocol.FILE_DOWNLOAD, file.getName(), ranges[0][0], ranges[0][1]));
+
+            for (int i = 1; i < ranges.length; i++) {
+                FileTransfer rangeTransfer = new FileTransfer(FileTransfer.DOWNLOAD, file, ranges[i][0], ranges[i][1]);
+                rangeTransfer.setAssembly(assembly);
+                fileTransfer.getConnection().startTransfer(rangeTransfer);
+            }
+        }
+        else {
+            long offset = OperationHandler.getPartialFile(file).length();
+
+            OperationHandler.sendMessage(fileSendingChannel, new Message(Protocol.FILE_DOWNLOAD, file.getName(), offset));
+        }
+    }
+
+    /**
+     * Store the next part of a download and give the file its name once it is complete.
+     * @param key the selection key of the download channel.
+     * @throws IOException
+     */
+    private void receiveFile(SelectionKey key) throws IOException {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+        FileChannelHelper fileChannelHelper = fileTransfer.getFileChannelHelper();
+
+        if (OperationHandler.getFile(key, fileTransfer.getDecoder(), fileChannelHelper)) {
+            fileTransfer.releaseDecoder();
+            OperationHandler.completePartialFile(fileChannelHelper);
+
+            ClientConnection connection = fileTransfer.getConnection();
+            connection.getListener().transferCompleted(connection, fileTransfer);
+        }
+    }
+
+    /**
+     * Handle the readiness of a file transfer channel.
+     * @param key the selection key of the transfer channel.
+     * @throws IOException
+     */
+    private void handleTransfer(SelectionKey key) throws IOException {
+        SocketChannel fileSendingChannel = (SocketChannel) key.channel();
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+
+        // The upload channel can take more of the file.
+        if (key.isWritable()) {
+            OperationHandler.sendFile(fileSendingChannel, fileTransfer.getFileChannelHelper());
+
+            if (!fileTransfer.getFileChannelHelper().getFileChannel().isOpen()) {
+                key.cancel();
+                fileSendingChannel.close();
+                fileTransfer.releaseDecoder();
+
+                ClientConnection connection = fileTransfer.getConnection();
+                connection.getListener().transferCompleted(connection, fileTransfer);
+            }
+        }
+        // Download file.
+        else if (fileTransfer.getFileChannelHelper() != null) {
+            receiveFile(key);
+        }
+        // Read the replies which precede the file data.
+        else {
+            MessageDecoder decoder = fileTransfer.getDecoder();
+            int readBytes = decoder.read(fileSendingChannel);
+
+            Message message;
+            while (key.isValid() && fileTransfer.getFileChannelHelper() == null
+                    && (message = decoder.nextFrame()) != null) {
+                handleTransferMessage(key, message);
+            }
+
+            // Store the file data which arrived together with the file header.
+            FileChannelHelper fileChannelHelper = fileTransfer.getFileChannelHelper();
+            if (key.isValid() && fileChannelHelper != null && fileTransfer.getDirection() == FileTransfer.DOWNLOAD
+                    && (decoder.hasPending() || fileChannelHelper.isComplete())) {
+                receiveFile(key);
+            }
+
+            // The server has closed the connection.
+            if (readBytes == -1 && key.isValid()) {
+                failTransfer(key, "Connection closed by the server");
+            }
+        }
+    }
+
+    /**
+     * Handle a message received on a file transfer channel.
+     * @param key the selection key of the transfer channel.
+     * @param message the received message.
+     * @throws IOException
+     */
+    private void handleTransferMessage(SelectionKey key, Message message) throws IOException {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+
+        switch (message.getOpcode()) {
+            // The server confirms the protocol.
+            case Protocol.HELLO:
+                break;
+            // The server checks that the client is alive.
+            case Protocol.PING:
+                OperationHandler.sendMessage((SocketChannel) key.channel(), new Message(Protocol.PONG));
+                break;
+            // The server reports how much of the upload it already has.
+            case Protocol.FILE_OFFSET:
+                startUpload(key, message.getLong(1));
+                break;
+            // The server reports the size of the file to download.
+            case Protocol.FILE_INFO:
+                startDownload(key, message.getLong(1));
+                break;
+            // The server is sending a file or a range of it, starting at the given offset.
+            case Protocol.FILE_UPLOAD: {
+                FileAssembly assembly = fileTransfer.getAssembly();
+
+                if (assembly != null) {
+                    fileTransfer.setFileChannelHelper(assembly.openRange(message.getLong(2), message.getLong(3)));
+                }
+                else {
+                    fileTransfer.setFileChannelHelper(
+                            OperationHandler.openPartialFile(fileTransfer.getFile(), message.getLong(1), message.getLong(2, 0)));
+                }
+                break;
+            }
+            // Server did not find requested file.
+            case Protocol.FILE_NOT_FOUND:
+                failTransfer(key, Constants.FILE_NOT_FOUND);
+                break;
+            default:
+                throw new IOException("Unexpected opcode " + message.getOpcode());
+        }
+    }
+
+    /**
+     * Close a file transfer channel which did not complete and tell the listener.
+     * @param key the selection key of the transfer channel.
+     * @param reason the reason of the failure.
+     */
+    private void failTransfer(SelectionKey key, String reason) {
+        FileTransfer fileTransfer = (FileTransfer) key.attachment();
+        FileChannelHelper fileChannelHelper = fileTransfer.getFileChannelHelper();
+
+        key.cancel();
+        fileTransfer.releaseDecoder();
+
+        try {
+            key.channel().close();
+
+            if (fileChannelHelper != null && !fileChannelHelper.isComplete()) {
+                if (fileChannelHelper.getAssembly() != null) {
+                    fileChannelHelper.getAssembly().release();
+                }
+                else {
+                    fileChannelHelper.getFileChannel().close();
+                }
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+
+        ClientConnection connection = fileTransfer.getConnection();
+        connection.getListener().transferFailed(connection, fileTransfer, reason);
+    }
+}
@@ -0,0 +1,27 @@
+package bg.sap.client;
+
+import bg.sap.utils.Message;
+
+import java.io.IOException;
+
+/**
+ * Receives the events of a chat connection. Called by the thread of the client engine.
+ * @Created by Terrax on 18.10.2026.
+ */
+public interface ClientListener {
+    /**
+     * The connection has been established, the client can log in.
+     */
+    void connected(ClientConnection connection) throws IOException;
+
+    void messageReceived(ClientConnection connection, Message message) throws IOException;
+
+    void transferCompleted(ClientConnection connection, FileTransfer fileTransfer);
+
+    void transferFailed(ClientConnection connection, FileTransfer fileTransfer, String reason);
+
+    /**
+     * The connection has been closed by the server or because of an error.
+     */
+    void disconnected(ClientConnection connection);
+}
@@ -0,0 +1,126 @@
+package bg.sap.client;
+
+import bg.sap.utils.FileAssembly;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.MessageDecoder;
+
+import java.io.File;
+
+/**
+ * State of a single file transfer of the client, on a connection of its own or as a stream of the chat
+ * connection.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileTransfer {
+    public static final int UPLOAD = 0;
+    public static final int DOWNLOAD = 1;
+
+    private int direction;
+    private File file;
+
+    // The chat connection which started the transfer and receives its outcome.
+    private ClientConnection connection;
+
+    // The byte range of the transfer, a negative length means the whole file from the resume offset.
+    private long offset;
+    private long length;
+
+    // Set for downloads which are received over several connections.
+    private FileAssembly assembly;
+
+    // Set for transfers which run as a file stream of the chat connection.
+    private long streamId;
+
+    private MessageDecoder decoder;
+    private FileChannelHelper fileChannelHelper;
+
+    public FileTransfer(int direction, File file) {
+        this(direction, file, 0, -1);
+    }
+
+    public FileTransfer(int direction, File file, long offset, long length) {
+        this.direction = direction;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int getDirection() {
+        return direction;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public ClientConnection getConnection() {
+        return connection;
+    }
+
+    void setConnection(ClientConnection connection) {
+        this.connection = connection;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isRange() {
+        return length >= 0;
+    }
+
+    public void setRange(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    void setStreamId(long streamId) {
+        this.streamId = streamId;
+    }
+
+    public FileAssembly getAssembly() {
+        return assembly;
+    }
+
+    public void setAssembly(FileAssembly assembly) {
+        this.assembly = assembly;
+    }
+
+    /**
+     * Get the decoder of the transfer channel, created with the first read.
+     * @return the decoder.
+     */
+    public MessageDecoder getDecoder() {
+        if (decoder == null) {
+            decoder = new MessageDecoder();
+        }
+
+        return decoder;
+    }
+
+    /**
+     * Give the buffer of the decoder back to the pool once the transfer channel is closed.
+     */
+    void releaseDecoder() {
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
+    }
+
+    public FileChannelHelper getFileChannelHelper() {
+        return fileChannelHelper;
+    }
+
+    public void setFileChannelHelper(FileChannelHelper fileChannelHelper) {
+        this.fileChannelHelper = fileChannelHelper;
+    }
+}
@@ -0,0 +1,421 @@
+package bg.sap.client;
+
+import bg.sap.server.LatencyHistogram;
+import bg.sap.utils.Constants;
+import bg.sap.utils.Message;
+import bg.sap.utils.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Command line load generator. It runs thousands of simulated users over a few client engines, sends chat
+ * or room messages at a fixed rate, uploads and downloads files, and reports the throughput and the end to
+ * end latency of the deliveries. Every message carries the time it was sent, so the latency is measured when
+ * the other simulated users receive it.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "load";
+    private static final int REPORT_INTERVAL = 5000;
+    private static final int DOWNLOAD_RETRIES = 20;
+    private static final int DOWNLOAD_RETRY_DELAY = 100;
+
+    private String host;
+    private int port;
+    private int userCount;
+    private int threads;
+    private double rate;
+    private int duration;
+    private int messageSize;
+    private int roomSize;
+    private int transfers;
+    private long fileSize;
+    private int connectRate;
+
+    private ClientEngine[] engines;
+    private AtomicReferenceArray<SimulatedUser> online;
+    private String padding;
+
+    private AtomicInteger loggedIn;
+    private AtomicInteger failed;
+    private LongAdder sent;
+    private LongAdder delivered;
+    private LatencyHistogram latency;
+
+    // Start times of the running transfers by file name, and the outcome of the finished ones.
+    private ConcurrentMap<String, Long> transferStarts;
+    private ConcurrentMap<String, Integer> downloadRetries;
+    private ScheduledExecutorService scheduler;
+    private LongAdder transfersCompleted;
+    private LongAdder transfersFailed;
+    private LongAdder transferredBytes;
+    private LatencyHistogram transferTime;
+    private File uploadDir;
+    private File downloadDir;
+
+    public LoadGenerator(Map<String, String> options) {
+        host = option(options, "host", "localhost");
+        port = Integer.parseInt(option(options, "port", String.valueOf(Constants.PORT)));
+        userCount = Integer.parseInt(option(options, "users", "1000"));
+        threads = Integer.parseInt(option(options, "threads", "4"));
+        rate = Double.parseDouble(option(options, "rate", "100"));
+        duration = Integer.parseInt(option(options, "duration", "60"));
+        messageSize = Integer.parseInt(option(options, "message-size", "100"));
+        roomSize = Integer.parseInt(option(options, "room-size", "0"));
+        transfers = Integer.parseInt(option(options, "transfers", "0"));
+        fileSize = Long.parseLong(option(options, "file-size", String.valueOf(1024 * 1024)));
+        connectRate = Integer.parseInt(option(options, "connect-rate", "500"));
+
+        online = new AtomicReferenceArray<SimulatedUser>(userCount);
+        loggedIn = new AtomicInteger();
+        failed = new AtomicInteger();
+        sent = new LongAdder();
+        delivered = new LongAdder();
+        latency = new LatencyHistogram();
+        transferStarts = new ConcurrentHashMap<String, Long>();
+        downloadRetries = new ConcurrentHashMap<String, Integer>();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        transfersCompleted = new LongAdder();
+        transfersFailed = new LongAdder();
+        transferredBytes = new LongAdder();
+        transferTime = new LatencyHistogram();
+
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < messageSize) {
+            builder.append('x');
+        }
+        padding = builder.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.out.println("Usage: LoadGenerator [--host localhost] [--port 4444] [--users 1000] [--threads 4]"
+                        + " [--rate 100] [--duration 60] [--message-size 100] [--room-size 0] [--transfers 0]"
+                        + " [--file-size 1048576] [--connect-rate 500]");
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Log the users in, run the load for the configured duration and print the results.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        engines = new ClientEngine[threads];
+        for (int i = 0; i < engines.length; i++) {
+            engines[i] = new ClientEngine();
+            new Thread(engines[i], "LoadEngine-" + i).start();
+        }
+
+        prepareFiles();
+
+        System.out.println("Connecting " + userCount + " users to " + host + ":" + port);
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < userCount; i++) {
+            engines[i % engines.length].connect(host, port, new SimulatedUser(i));
+
+            // Spread the connections, so the backlog of the server does not overflow.
+            if ((i + 1) % Math.max(1, connectRate / 100) == 0) {
+                Thread.sleep(10);
+            }
+        }
+
+        while (loggedIn.get() + failed.get() < userCount && System.currentTimeMillis() - start < 120000) {
+            Thread.sleep(100);
+        }
+        System.out.println(loggedIn.get() + " users logged in, " + failed.get() + " failed, in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        if (loggedIn.get() == 0) {
+            stop();
+            return;
+        }
+
+        generateLoad();
+
+        // Let the last messages arrive.
+        Thread.sleep(2000);
+        report("total", duration * 1000L, sent.sum(), delivered.sum());
+        reportTransfers();
+
+        stop();
+    }
+
+    /**
+     * Send messages at the configured rate and start the transfers evenly over the duration.
+     * @throws InterruptedException
+     */
+    private void generateLoad() throws InterruptedException {
+        Random random = new Random();
+        long start = System.nanoTime();
+        long end = start + duration * 1000000000L;
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long messages = 0;
+        int startedTransfers = 0;
+
+        for (long now = start; now < end; now = System.nanoTime()) {
+            double elapsed = (now - start) / 1e9;
+
+            // Catch up with the rate, the scheduler may have been late.
+            for (long due = (long) (rate * elapsed); messages < due; messages++) {
+                SimulatedUser user = online.get(random.nextInt(userCount));
+                if (user != null) {
+                    user.sendMessage();
+                }
+            }
+
+            while (startedTransfers < transfers && startedTransfers < (long) transfers * (now - start) / (end - start) + 1) {
+                SimulatedUser user = online.get(random.nextInt(userCount));
+                if (user != null) {
+                    user.upload(startedTransfers);
+                }
+                startedTransfers++;
+            }
+
+            if (System.currentTimeMillis() >= nextReport) {
+                long sentNow = sent.sum();
+                long deliveredNow = delivered.sum();
+
+                report(String.format("%3ds", (int) elapsed), REPORT_INTERVAL, sentNow - lastSent, deliveredNow - lastDelivered);
+
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                nextReport += REPORT_INTERVAL;
+            }
+
+            Thread.sleep(1);
+        }
+    }
+
+    private void report(String label, long millis, long sentMessages, long deliveredMessages) {
+        System.out.println(String.format("[%s] users %d, sent %d (%.0f/s), delivered %d (%.0f/s),"
+                        + " latency ms p50 %.2f p99 %.2f p99.9 %.2f max %.2f",
+                label, loggedIn.get(), sentMessages, sentMessages * 1000.0 / millis,
+                deliveredMessages, deliveredMessages * 1000.0 / millis,
+                latency.get50thPercentile() / 1000.0, latency.get99thPercentile() / 1000.0,
+                latency.get999thPercentile() / 1000.0, latency.getMax() / 1000.0));
+    }
+
+    private void reportTransfers() {
+        if (transfers == 0) {
+            return;
+        }
+
+        System.out.println(String.format("transfers: %d completed, %d failed, %.1f MB moved,"
+                        + " time ms p50 %.1f p99 %.1f max %.1f",
+                transfersCompleted.sum(), transfersFailed.sum(), transferredBytes.sum() / 1048576.0,
+                transferTime.get50thPercentile() / 1000.0, transferTime.get99thPercentile() / 1000.0,
+                transferTime.getMax() / 1000.0));
+    }
+
+    private void stop() {
+        for (ClientEngine engine : engines) {
+            engine.stop();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Create the files which the users upload, one per transfer.
+     * @throws IOException
+     */
+    private void prepareFiles() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "simplechat-load");
+        uploadDir = new File(dir, "uploads");
+        downloadDir = new File(dir, "downloads");
+
+        if (transfers == 0) {
+            return;
+        }
+
+        if ((!uploadDir.isDirectory() && !uploadDir.mkdirs()) || (!downloadDir.isDirectory() && !downloadDir.mkdirs())) {
+            throw new IOException("Could not create " + dir);
+        }
+
+        for (int i = 0; i < transfers; i++) {
+            RandomAccessFile file = new RandomAccessFile(new File(uploadDir, transferName(i)), "rw");
+            try {
+                file.setLength(fileSize);
+            }
+            finally {
+                file.close();
+            }
+        }
+    }
+
+    private static String transferName(int index) {
+        return "load-" + index + ".bin";
+    }
+
+    /**
+     * A user who logs in, joins its room and receives the messages of the others.
+     */
+    private class SimulatedUser implements ClientListener {
+        private int index;
+        private String name;
+        private String room;
+        private ClientConnection connection;
+
+        // Set once the server has answered the login.
+        private boolean answered;
+
+        private SimulatedUser(int index) {
+            this.index = index;
+            this.name = "load-" + index;
+            this.room = roomSize > 0 ? "load-" + index / roomSize : null;
+        }
+
+        /**
+         * Send a message which starts with the time it has been sent.
+         */
+        private void sendMessage() {
+            String text = System.nanoTime() + ":" + padding;
+
+            connection.send(room != null
+                    ? new Message(Protocol.ROOM_MESSAGE, room, text)
+                    : new Message(Protocol.CHAT, text));
+            sent.increment();
+        }
+
+        /**
+         * Upload a file, it is downloaded again once the upload is complete.
+         * @param transfer the number of the transfer.
+         */
+        private void upload(int transfer) {
+            String fileName = transferName(transfer);
+
+            transferStarts.put(fileName, System.nanoTime());
+            connection.upload(new File(uploadDir, fileName));
+        }
+
+        @Override
+        public void connected(ClientConnection connection) {
+            this.connection = connection;
+            connection.login(name, PASSWORD);
+        }
+
+        @Override
+        public void messageReceived(ClientConnection connection, Message message) {
+            switch (message.getOpcode()) {
+                case Protocol.LOGIN_OK:
+                    answered = true;
+                    if (room != null) {
+                        connection.send(new Message(Protocol.JOIN, room));
+                    }
+                    online.set(index, this);
+                    loggedIn.incrementAndGet();
+                    break;
+                case Protocol.INVALID_USER:
+                    answered = true;
+                    failed.incrementAndGet();
+                    break;
+                case Protocol.CHAT:
+                    received(message.getString(1));
+                    break;
+                case Protocol.ROOM_MESSAGE:
+                    received(message.getString(2));
+                    break;
+            }
+        }
+
+        private void received(String text) {
+            int separator = text.indexOf(':');
+            if (separator <= 0) {
+                return;
+            }
+
+            try {
+                latency.record(System.nanoTime() - Long.parseLong(text.substring(0, separator)));
+                delivered.increment();
+            }
+            catch (NumberFormatException exception) {
+                // A message of a real user.
+            }
+        }
+
+        @Override
+        public void transferCompleted(ClientConnection connection, FileTransfer fileTransfer) {
+            String fileName = fileTransfer.getFile().getName();
+            Long started = transferStarts.remove(fileName);
+
+            if (started != null) {
+                transferTime.record(System.nanoTime() - started);
+            }
+            transfersCompleted.increment();
+            transferredBytes.add(fileSize);
+
+            // Fetch the uploaded file back.
+            if (fileTransfer.getDirection() == FileTransfer.UPLOAD) {
+                transferStarts.put(fileName, System.nanoTime());
+                connection.download(new File(downloadDir, fileName));
+            }
+        }
+
+        @Override
+        public void transferFailed(final ClientConnection connection, FileTransfer fileTransfer, String reason) {
+            final String fileName = fileTransfer.getFile().getName();
+
+            // The server renames the upload once it has read all of it, which may be after the client has sent it.
+            if (fileTransfer.getDirection() == FileTransfer.DOWNLOAD && reason.equals(Constants.FILE_NOT_FOUND)) {
+                Integer retries = downloadRetries.get(fileName);
+
+                if (retries == null || retries < DOWNLOAD_RETRIES) {
+                    downloadRetries.put(fileName, retries == null ? 1 : retries + 1);
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connection.download(new File(downloadDir, fileName));
+                        }
+                    }, DOWNLOAD_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+
+            transferStarts.remove(fileName);
+            transfersFailed.increment();
+
+            System.out.println(fileTransfer.getFile().getName() + ": " + reason);
+        }
+
+        @Override
+        public void disconnected(ClientConnection connection) {
+            if (online.compareAndSet(index, this, null)) {
+                loggedIn.decrementAndGet();
+            }
+            else if (!answered) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+}
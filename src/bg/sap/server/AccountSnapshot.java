@@ -0,0 +1,256 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Read-only hash table of accounts in a memory mapped file. Opening it costs only the mapping, the
+ * accounts are looked up in the mapped bytes without being loaded.
+ *
+ * The file holds a header, the account records and the slots of an open addressing table. A record is the
+ * name and the password as 2 byte length and UTF-8 bytes, a slot is the position of a record or 0.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class AccountSnapshot {
+    private static final Charset UTF_8 = Charset.forName(Constants.UTF_ENCODING);
+
+    private static final int MAGIC = 0x53434153;
+    private static final int VERSION = 1;
+
+    // Magic, version, journal position, record count, slot count and position of the slots.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+
+    private MappedByteBuffer buffer;
+    private long journalPosition;
+    private int count;
+    private int slotCount;
+    private int slotsPosition;
+
+    private AccountSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Invalid account snapshot");
+        }
+
+        this.journalPosition = buffer.getLong(8);
+        this.count = buffer.getInt(16);
+        this.slotCount = buffer.getInt(20);
+        this.slotsPosition = buffer.getInt(24);
+
+        if (Integer.bitCount(slotCount) != 1 || slotsPosition + 4L * slotCount != buffer.capacity()) {
+            throw new IOException("Corrupt account snapshot");
+        }
+    }
+
+    /**
+     * Map a snapshot file.
+     * @param file the snapshot file.
+     * @return the snapshot or null if the file does not exist.
+     * @throws IOException if the file is no valid snapshot.
+     */
+    public static AccountSnapshot open(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        // The mapping stays valid after the channel has been closed.
+        try {
+            return new AccountSnapshot(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()));
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Write a snapshot which holds the accounts of a previous snapshot and newer accounts. The file is written
+     * beside the target and renamed, so a crash leaves the previous snapshot intact.
+     * @param file the snapshot file.
+     * @param previous the previous snapshot or null.
+     * @param accounts accounts which replace or extend the previous snapshot.
+     * @param journalPosition the position in the journal up to which the snapshot holds the accounts.
+     * @throws IOException
+     */
+    public static void write(File file, AccountSnapshot previous, Map<String, String> accounts, long journalPosition) throws IOException {
+        int capacity = (previous == null ? 0 : previous.count) + accounts.size();
+        int[] hashes = new int[capacity];
+        int[] positions = new int[capacity];
+        int count = 0;
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), Constants.BUFFER_SIZE));
+        long position = HEADER_SIZE;
+
+        try {
+            output.write(new byte[HEADER_SIZE]);
+
+            // Copy the records of the previous snapshot which have not been replaced.
+            if (previous != null) {
+                ByteBuffer records = previous.buffer.duplicate();
+                records.position(HEADER_SIZE).limit(previous.slotsPosition);
+
+                while (records.hasRemaining()) {
+                    int start = records.position();
+                    byte[] name = readBytes(records);
+                    byte[] password = readBytes(records);
+
+                    if (accounts.containsKey(new String(name, UTF_8))) {
+                        continue;
+                    }
+
+                    hashes[count] = hash(name);
+                    positions[count++] = (int) position;
+                    position += records.position() - start;
+                    writeBytes(output, name);
+                    writeBytes(output, password);
+                }
+            }
+
+            for (Map.Entry<String, String> account : accounts.entrySet()) {
+                byte[] name = account.getKey().getBytes(UTF_8);
+                byte[] password = account.getValue().getBytes(UTF_8);
+
+                hashes[count] = hash(name);
+                positions[count++] = (int) position;
+                position += 4 + name.length + password.length;
+                writeBytes(output, name);
+                writeBytes(output, password);
+            }
+
+            // Keep the table at most half full, so the probe sequences stay short.
+            int slotCount = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+
+            // Records are addressed by int positions, like the mapping itself.
+            if (position + 4L * slotCount > Integer.MAX_VALUE) {
+                throw new IOException("Account snapshot exceeds 2 GB");
+            }
+            int[] slots = new int[slotCount];
+
+            for (int i = 0; i < count; i++) {
+                int slot = hashes[i] & (slotCount - 1);
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & (slotCount - 1);
+                }
+                slots[slot] = positions[i];
+            }
+
+            for (int slot : slots) {
+                output.writeInt(slot);
+            }
+            output.close();
+
+            // Fill in the header now that the sizes are known.
+            FileChannel fileChannel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(journalPosition).putInt(count).putInt(slotCount).putInt((int) position);
+                header.flip();
+
+                fileChannel.write(header, 0);
+                fileChannel.force(true);
+            }
+            finally {
+                fileChannel.close();
+            }
+        }
+        finally {
+            output.close();
+        }
+
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Look up the password of an account.
+     * @param name the name of the account.
+     * @return the password or null if the snapshot does not hold the account.
+     */
+    public String getPassword(String name) {
+        byte[] key = name.getBytes(UTF_8);
+        int slot = hash(key) & (slotCount - 1);
+
+        for (int position; (position = buffer.getInt(slotsPosition + 4 * slot)) != 0; slot = (slot + 1) & (slotCount - 1)) {
+            int length = buffer.getShort(position) & 0xFFFF;
+
+            if (length == key.length && matches(position + 2, key)) {
+                int passwordPosition = position + 2 + length;
+                byte[] password = new byte[buffer.getShort(passwordPosition) & 0xFFFF];
+
+                ByteBuffer view = buffer.duplicate();
+                view.position(passwordPosition + 2);
+                view.get(password);
+
+                return new String(password, UTF_8);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare mapped bytes with a key.
+     * @param position the position of the mapped bytes.
+     * @param key the key.
+     * @return true if the bytes are equal.
+     */
+    private boolean matches(int position, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * FNV-1a hash of a name, computed from its bytes so the records can be hashed without decoding them.
+     * @param bytes the UTF-8 bytes of the name.
+     * @return the hash.
+     */
+    private static int hash(byte[] bytes) {
+        int hash = 0x811C9DC5;
+
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+
+        return hash;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+}
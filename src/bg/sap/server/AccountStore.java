@@ -0,0 +1,329 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent store of the user accounts.
+ *
+ * New accounts are appended to a journal of "name:password" lines. A single committer thread writes all
+ * registrations which are waiting at the same time with one write and one fsync, and reports them to their
+ * callbacks only once they are durable. From time to time the committer compacts the accounts into a memory
+ * mapped snapshot and starts the journal over, so a restart maps the snapshot and reads only the short journal.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class AccountStore implements Runnable {
+    private static final Charset UTF_8 = Charset.forName(Constants.UTF_ENCODING);
+
+    /**
+     * Receives the outcome of a registration. Called by the committer thread.
+     */
+    public interface CommitCallback {
+        void committed();
+
+        void failed(IOException exception);
+    }
+
+    private static class Registration {
+        private String name;
+        private String password;
+        private CommitCallback callback;
+
+        private Registration(String name, String password, CommitCallback callback) {
+            this.name = name;
+            this.password = password;
+            this.callback = callback;
+        }
+    }
+
+    private File journalFile;
+    private File snapshotFile;
+    private FileChannel journal;
+
+    // Accounts of the snapshot, accounts journaled after it and names whose registration is not durable yet.
+    private volatile AccountSnapshot snapshot;
+    private Map<String, String> accounts;
+    private Map<String, String> reserved;
+
+    private BlockingQueue<Registration> registrations;
+    private Thread thread;
+    private volatile boolean running;
+
+    public AccountStore(File journalFile, File snapshotFile) {
+        this.journalFile = journalFile;
+        this.snapshotFile = snapshotFile;
+        this.accounts = new ConcurrentHashMap<String, String>();
+        this.reserved = new ConcurrentHashMap<String, String>();
+        this.registrations = new LinkedBlockingQueue<Registration>();
+    }
+
+    /**
+     * Load the accounts and start the committer thread.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        snapshot = AccountSnapshot.open(snapshotFile);
+
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long position = snapshot == null ? 0 : Math.min(snapshot.getJournalPosition(), journal.size());
+        journal.position(replay(position));
+
+        System.out.println("Loaded " + getCount() + " accounts.");
+
+        running = true;
+        thread = new Thread(this, "AccountStore");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Commit the waiting registrations and stop the committer thread.
+     * @throws IOException
+     */
+    public void stop() throws IOException {
+        running = false;
+
+        if (thread != null) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        journal.close();
+    }
+
+    public int getCount() {
+        return (snapshot == null ? 0 : snapshot.getCount()) + accounts.size();
+    }
+
+    /**
+     * Look up the password of an account.
+     * @param name the name of the account.
+     * @return the password or null if there is no such account.
+     */
+    public String getPassword(String name) {
+        // The journaled accounts are checked first, compaction moves them to the snapshot before removing them.
+        String password = accounts.get(name);
+        if (password != null) {
+            return password;
+        }
+
+        AccountSnapshot current = snapshot;
+
+        return current == null ? null : current.getPassword(name);
+    }
+
+    /**
+     * Register a new account. The account can be used once the callback has been told that it is committed.
+     * @param name the name of the account.
+     * @param password the password of the account.
+     * @param callback receives the outcome once the account has been written to the disk.
+     * @return false if the name is taken or can not be stored, true if the registration is being committed.
+     */
+    public boolean register(String name, String password, CommitCallback callback) {
+        if (name.isEmpty() || name.indexOf(':') >= 0 || name.indexOf('\n') >= 0 || password.indexOf('\n') >= 0) {
+            return false;
+        }
+
+        // The name goes into every message which the user sends, which must still fit into a frame.
+        if (Protocol.utf8Length(name) > Constants.MAX_USER_NAME_LENGTH) {
+            return false;
+        }
+
+        if (getPassword(name) != null || reserved.putIfAbsent(name, password) != null) {
+            return false;
+        }
+
+        // Check again, the name may have been committed between the lookup and the reservation.
+        if (getPassword(name) != null) {
+            reserved.remove(name);
+            return false;
+        }
+
+        registrations.add(new Registration(name, password, callback));
+
+        return true;
+    }
+
+    /**
+     * Commit the registrations in batches and compact the journal when it has grown.
+     */
+    @Override
+    public void run() {
+        List<Registration> batch = new ArrayList<Registration>();
+
+        while (running || !registrations.isEmpty()) {
+            try {
+                Registration registration = registrations.poll(1, TimeUnit.SECONDS);
+
+                if (registration != null) {
+                    // Every registration which is waiting now shares the fsync.
+                    batch.add(registration);
+                    registrations.drainTo(batch, Constants.ACCOUNT_BATCH_SIZE - 1);
+
+                    commit(batch);
+                    batch.clear();
+                }
+
+                if (accounts.size() >= Constants.ACCOUNT_COMPACTION_THRESHOLD) {
+                    compact();
+                }
+            }
+            catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Append a batch of registrations to the journal and make it durable.
+     * @param batch the registrations.
+     */
+    private void commit(List<Registration> batch) {
+        StringBuilder lines = new StringBuilder();
+        for (Registration registration : batch) {
+            lines.append(registration.name).append(':').append(registration.password).append('\n');
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(UTF_8));
+        long position = 0;
+
+        try {
+            position = journal.position();
+
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            journal.force(false);
+        }
+        catch (IOException exception) {
+            // Drop the partly written batch, so the journal ends with a complete line.
+            try {
+                journal.truncate(position);
+                journal.position(position);
+            }
+            catch (IOException truncateException) {
+                truncateException.printStackTrace();
+            }
+
+            for (Registration registration : batch) {
+                reserved.remove(registration.name);
+                registration.callback.failed(exception);
+            }
+            return;
+        }
+
+        for (Registration registration : batch) {
+            accounts.put(registration.name, registration.password);
+            reserved.remove(registration.name);
+            registration.callback.committed();
+        }
+    }
+
+    /**
+     * Write the journaled accounts into a new snapshot, map it and start the journal over. Called by the
+     * committer thread.
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        Map<String, String> compacted = new HashMap<String, String>(accounts);
+
+        // The snapshot holds every journaled account, so the journal which follows it starts at 0. A crash
+        // before the journal has been truncated only replays accounts which the snapshot already holds.
+        AccountSnapshot.write(snapshotFile, snapshot, compacted, 0);
+        snapshot = AccountSnapshot.open(snapshotFile);
+
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+
+        // Only the committer adds accounts, so the journaled accounts are exactly the compacted ones.
+        accounts.keySet().removeAll(compacted.keySet());
+
+        System.out.println("Compacted " + snapshot.getCount() + " accounts.");
+    }
+
+    /**
+     * Read the accounts which the journal holds after a position. An incomplete last line, which a crash
+     * during a write can leave, is cut off.
+     * @param position the position up to which the snapshot holds the accounts.
+     * @return the end of the last complete line.
+     * @throws IOException
+     */
+    private long replay(long position) throws IOException {
+        long size = journal.size();
+        if (position >= size) {
+            return position;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(Constants.BUFFER_SIZE);
+        byte[] line = new byte[Constants.BUFFER_SIZE];
+        int length = 0;
+        long end = position;
+
+        for (long offset = position; offset < size; ) {
+            buffer.clear();
+            int read = journal.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+
+                if (b != '\n') {
+                    if (length == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, length);
+                        line = grown;
+                    }
+                    line[length++] = b;
+                    continue;
+                }
+
+                String account = new String(line, 0, length, UTF_8).trim();
+                int colon = account.indexOf(':');
+
+                // Accounts which the snapshot holds are left over from a compaction which the crash interrupted.
+                if (colon > 0 && (snapshot == null || snapshot.getPassword(account.substring(0, colon)) == null)) {
+                    accounts.put(account.substring(0, colon), account.substring(colon + 1));
+                }
+
+                length = 0;
+                end = offset + i + 1;
+            }
+
+            offset += read;
+        }
+
+        if (end < size) {
+            journal.truncate(end);
+        }
+
+        return end;
+    }
+}
@@ -0,0 +1,213 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.OperationHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session of a blocking connection which has a thread of its own for reading and one for writing. The writer
+ * sleeps until data is queued, so a slow client blocks only its own writer and never the thread which sends
+ * to it.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class BlockingSession extends Session {
+    // Held while the messages of the client are handled, tasks of other threads take it as well.
+    private ReentrantLock lock;
+
+    private volatile Thread writer;
+    private volatile boolean closeAfterFlush;
+
+    // Streams of messages which are queued a batch at a time once the queue has been written, in order.
+    private Queue<MessageStream> streams;
+
+    // File which is being sent to the client after the queued data.
+    private volatile FileChannelHelper download;
+
+    // Buffers of a gathering write, used by the writer thread.
+    private ByteBuffer[] writeBatch;
+
+    public BlockingSession(SocketChannel socketChannel, ChatServer server) {
+        super(socketChannel, server);
+        this.lock = new ReentrantLock();
+        this.closeAfterFlush = false;
+        this.streams = new ConcurrentLinkedQueue<MessageStream>();
+        this.writeBatch = new ByteBuffer[Constants.WRITE_BATCH_BUFFERS];
+    }
+
+    @Override
+    public boolean isOpen() {
+        return getState() != State.CLOSED && getSocketChannel().isOpen();
+    }
+
+    @Override
+    public boolean isDownloading() {
+        return download != null;
+    }
+
+    @Override
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    @Override
+    public void startDownload(FileChannelHelper fileChannelHelper) throws IOException {
+        download = fileChannelHelper;
+        getMetrics().transferStarted();
+        wakeWriter();
+    }
+
+    @Override
+    public void startStream(MessageStream stream) throws IOException {
+        streams.add(stream);
+        wakeWriter();
+    }
+
+    /**
+     * Run a task on the calling thread while no message of the client is being handled.
+     * @param task the task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        lock.lock();
+        try {
+            task.run();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void closeAfterFlush() throws IOException {
+        closeAfterFlush = true;
+        wakeWriter();
+    }
+
+    @Override
+    protected void queued() throws IOException {
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        Thread thread = writer;
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Write the queue, the streams and the download until the connection is closed. Runs on the writer
+     * thread of the connection.
+     */
+    void writeLoop() {
+        writer = Thread.currentThread();
+
+        try {
+            while (isOpen()) {
+                if (writeNext()) {
+                    continue;
+                }
+
+                if (closeAfterFlush && streams.isEmpty()) {
+                    close();
+                    break;
+                }
+
+                // Data queued after the check unparks the writer, so the permit is not lost.
+                LockSupport.park(this);
+            }
+        }
+        catch (IOException exception) {
+            getServer().disconnect(this);
+        }
+        finally {
+            writer = null;
+        }
+    }
+
+    /**
+     * Write the next piece of work: the head of the queue, a batch of the first stream, a chunk of the file
+     * streams or a fragment of the download.
+     * @return false if there was nothing to write.
+     * @throws IOException
+     */
+    private boolean writeNext() throws IOException {
+        SocketChannel socketChannel = getSocketChannel();
+
+        // The socket blocks until it takes the data, the limit only bounds a single gathering write.
+        if (!getWriteQueue().isEmpty()) {
+            writeQueued(writeBatch, Constants.WRITE_PASS_BYTES);
+            return true;
+        }
+
+        MessageStream stream = streams.peek();
+        if (stream != null && stream.isReady()) {
+            if (stream.next(this)) {
+                streams.poll();
+            }
+
+            return true;
+        }
+
+        if (sendChunk()) {
+            return true;
+        }
+
+        // The stream wakes the writer once its data has arrived.
+        if (stream != null) {
+            return false;
+        }
+
+        FileChannelHelper file = download;
+        if (file != null) {
+            long sent = OperationHandler.sendFile(socketChannel, file);
+            sent(sent);
+            getMetrics().fileSent(sent);
+
+            if (file.isComplete()) {
+                download = null;
+                getMetrics().transferEnded();
+                closeAfterFlush = true;
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        MessageStream stream;
+        while ((stream = streams.poll()) != null) {
+            stream.close();
+        }
+
+        FileChannelHelper file = download;
+        if (file != null) {
+            download = null;
+            file.close();
+            getMetrics().transferEnded();
+        }
+
+        getSocketChannel().close();
+        wakeWriter();
+    }
+}
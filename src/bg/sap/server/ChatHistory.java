@@ -0,0 +1,241 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * History of the broadcast chat messages. Every message gets a sequence number and goes into a ring of the
+ * latest messages, a writer thread appends it to memory mapped segment files. Appending is a few memory
+ * writes for the reactors, all file work including opening new segments happens on the writer thread.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ChatHistory implements Runnable {
+    private File dir;
+
+    // The latest messages, indexed by sequence number.
+    private AtomicReferenceArray<HistoryEntry> ring;
+    private volatile long lastSequence;
+
+    // Messages which the writer thread has not stored yet.
+    private BlockingQueue<HistoryEntry> pending;
+
+    // Segments by the sequence number of their first message, the last one is being written.
+    private ConcurrentNavigableMap<Long, HistorySegment> segments;
+    private HistorySegment current;
+
+    private Thread thread;
+
+    public ChatHistory(File dir) {
+        this.dir = dir;
+        this.ring = new AtomicReferenceArray<HistoryEntry>(Constants.HISTORY_RING_SIZE);
+        this.pending = new LinkedBlockingQueue<HistoryEntry>();
+        this.segments = new ConcurrentSkipListMap<Long, HistorySegment>();
+    }
+
+    /**
+     * Open the stored segments, fill the ring with the latest messages and start the writer thread.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create history directory " + dir);
+        }
+
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (file.getName().endsWith(".log")) {
+                HistorySegment segment = HistorySegment.open(file);
+                segments.put(segment.getFirstSequence(), segment);
+                current = segment;
+            }
+        }
+
+        if (current != null) {
+            lastSequence = current.getLastSequence();
+
+            List<HistoryEntry> entries = new ArrayList<HistoryEntry>();
+            long read = Math.max(0, lastSequence - ring.length());
+
+            // Every call reads from a single segment.
+            for (long next; read < lastSequence; read = next) {
+                next = read(read, lastSequence, Integer.MAX_VALUE, entries);
+                if (next == read) {
+                    break;
+                }
+            }
+
+            for (HistoryEntry entry : entries) {
+                ring.set(slot(entry.getSequence()), entry);
+            }
+        }
+
+        System.out.println("Chat history holds " + segments.size() + " segments up to message " + lastSequence + ".");
+
+        thread = new Thread(this, "ChatHistory");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Add a message to the history. Called by the reactors.
+     * @param sender the name of the sender.
+     * @param text the text of the message.
+     * @return the message with its sequence number.
+     */
+    public HistoryEntry append(String sender, String text) {
+        // The lock only orders the sequence numbers and the queue, no file is touched under it.
+        synchronized (this) {
+            HistoryEntry entry = new HistoryEntry(lastSequence + 1, System.currentTimeMillis(), sender, text);
+
+            ring.set(slot(entry.getSequence()), entry);
+            pending.add(entry);
+            lastSequence = entry.getSequence();
+
+            return entry;
+        }
+    }
+
+    /**
+     * Read the messages which follow a sequence number, from the ring if it still holds them.
+     * @param afterSequence the sequence number of the last message which is not wanted.
+     * @param toSequence the sequence number of the last wanted message.
+     * @param maxBytes the size of the text after which reading stops.
+     * @param entries the list which receives the messages.
+     * @return the sequence number of the last message read or afterSequence if there was none.
+     */
+    public long read(long afterSequence, long toSequence, int maxBytes, List<HistoryEntry> entries) {
+        long read = afterSequence;
+        int bytes = 0;
+
+        // The ring holds consecutive messages, stop at the first slot which has been overwritten.
+        while (read < toSequence && bytes < maxBytes) {
+            HistoryEntry entry = ring.get(slot(read + 1));
+
+            if (entry == null || entry.getSequence() != read + 1) {
+                break;
+            }
+
+            entries.add(entry);
+            bytes += entry.getSender().length() + entry.getText().length();
+            read++;
+        }
+
+        if (read > afterSequence || read >= toSequence) {
+            return read;
+        }
+
+        // Older messages come from the segments, starting with the one which holds the next message. The
+        // writer may drop segments meanwhile, a dropped segment is skipped and a retained one stays readable.
+        Long floor = segments.floorKey(afterSequence + 1);
+        Map<Long, HistorySegment> candidates = floor != null ? segments.tailMap(floor) : segments;
+
+        for (HistorySegment segment : candidates.values()) {
+            if (read != afterSequence) {
+                break;
+            }
+
+            if (!segment.retain()) {
+                continue;
+            }
+
+            try {
+                read = segment.read(afterSequence, toSequence, maxBytes, entries);
+            }
+            finally {
+                segment.release();
+            }
+        }
+
+        return read;
+    }
+
+    /**
+     * Store the queued messages in the segments and force them to the disk now and then.
+     */
+    @Override
+    public void run() {
+        List<HistoryEntry> batch = new ArrayList<HistoryEntry>();
+        long lastForce = System.currentTimeMillis();
+        boolean dirty = false;
+
+        while (true) {
+            try {
+                HistoryEntry entry = pending.poll(Constants.HISTORY_FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+
+                if (entry != null) {
+                    batch.add(entry);
+                    pending.drainTo(batch);
+
+                    for (HistoryEntry queued : batch) {
+                        write(queued);
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastForce >= Constants.HISTORY_FORCE_INTERVAL) {
+                    current.force();
+                    lastForce = now;
+                    dirty = false;
+                }
+            }
+            catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Append a message to the current segment and start a new segment when it is full.
+     * @param entry the message.
+     * @throws IOException
+     */
+    private void write(HistoryEntry entry) throws IOException {
+        if (current != null && current.append(entry)) {
+            return;
+        }
+
+        if (current != null) {
+            current.force();
+        }
+
+        current = HistorySegment.create(dir, entry.getSequence());
+        segments.put(current.getFirstSequence(), current);
+
+        if (!current.append(entry)) {
+            throw new IOException("Message " + entry.getSequence() + " does not fit into a history segment");
+        }
+
+        // Drop the oldest segments, their files are deleted when the readers are done with them.
+        while (segments.size() > Constants.HISTORY_SEGMENTS) {
+            segments.pollFirstEntry().getValue().release();
+        }
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % ring.length());
+    }
+}
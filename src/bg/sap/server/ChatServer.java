@@ -1,15 +1,24 @@
 package bg.sap.server;
 
+import bg.sap.utils.BufferPool;
 import bg.sap.utils.Constants;
+import bg.sap.utils.FileAssembly;
+import bg.sap.utils.FileCache;
 import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.FileStream;
+import bg.sap.utils.MappedFile;
+import bg.sap.utils.Message;
 import bg.sap.utils.OperationHandler;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
 import bg.sap.utils.User;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @Created by Terrax on 13.3.2015.
@@ -18,81 +27,146 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ChatServer implements Runnable {
 
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
 
-    // Container which maps a user to its chatting channel.
-    private Map<User, SocketChannel> connectedUsers;
-    private Map<SocketChannel, User> connectedChannels;
+    // Worker reactors which serve the accepted connections.
+    private Reactor[] reactors;
+    private int nextReactor;
 
-    // Container which maps a user to its file channel.
-    private Map<SelectionKey, FileChannelHelper> fileChannels;
+    // Threads of the connections, instead of the reactors.
+    private ConnectionThreads connectionThreads;
 
-    // Container for user accounts.
-    private Map<String, String> userAccounts;
+    // Index of the logged in sessions by user name.
+    private SessionRegistry sessionRegistry;
+
+    // Container which maps a file path to the file being uploaded in parallel ranges.
+    private Map<String, FileAssembly> fileAssemblies;
+
+    // Store of the user accounts.
+    private AccountStore accountStore;
+
+    // Index of the stored files.
+    private FileCatalog fileCatalog;
+
+    // Mappings of the files which are downloaded, shared by the downloads.
+    private FileCache fileCache;
+
+    // History of the chat messages.
+    private ChatHistory chatHistory;
+
+    // Index of the rooms by name.
+    private RoomRegistry roomRegistry;
+
+    // Messages kept for the users while they are offline.
+    private InboxStore inboxStore;
+
+    // Counters and latencies published over JMX.
+    private ServerMetrics metrics;
+
+    // Threads for the file system work, which is kept off the reactors.
+    private DiskExecutor diskExecutor;
 
     public ChatServer(int port) {
-        connectedUsers = new ConcurrentHashMap<User, SocketChannel>();
-        connectedChannels = new ConcurrentHashMap<SocketChannel, User>();
-        fileChannels = new ConcurrentHashMap<SelectionKey, FileChannelHelper>();
-        userAccounts = new ConcurrentHashMap<String, String>();
+        this(port, Constants.SERVER_ENGINE.equals(Constants.ENGINE_THREADS) ? 0 : Constants.REACTOR_COUNT);
+    }
+
+    /**
+     * @param port the port on which the server should listen for new connections.
+     * @param reactorCount the number of worker reactors, 0 to serve every connection on threads of its own.
+     */
+    public ChatServer(int port, int reactorCount) {
+        this(port, reactorCount, null);
+    }
+
+    /**
+     * @param port the port on which the server should listen for new connections.
+     * @param reactorCount the number of worker reactors, 0 to serve every connection on threads of its own.
+     * @param dataDir the directory of the accounts, the history and the inboxes, null for the working directory.
+     */
+    public ChatServer(int port, int reactorCount, File dataDir) {
+        sessionRegistry = new SessionRegistry();
+        fileCache = new FileCache(Constants.FILE_CACHE_SIZE, Constants.FILE_CACHE_MAX_FILE);
+        metrics = new ServerMetrics(sessionRegistry, fileCache);
+        roomRegistry = new RoomRegistry();
+        fileAssemblies = new HashMap<String, FileAssembly>();
+        accountStore = new AccountStore(new File(dataDir, Constants.ACCOUNTS_FILE),
+                new File(dataDir, Constants.ACCOUNTS_SNAPSHOT));
+        fileCatalog = new FileCatalog(new File(Constants.FILE_DIR));
+        chatHistory = new ChatHistory(new File(dataDir, Constants.HISTORY_DIR));
+        inboxStore = new InboxStore(new File(dataDir, Constants.INBOX_DIR));
+        diskExecutor = new DiskExecutor(Constants.DISK_THREADS, Constants.DISK_QUEUE_SIZE);
 
         try {
-            startServer(port);
-            loadUsers();
+            startServer(port, reactorCount);
+            accountStore.start();
+            chatHistory.start();
+            inboxStore.start();
+            metrics.register();
         }
         catch (IOException exception) {
             exception.printStackTrace();
         }
     }
 
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
-     * Opens the channel for the server.
+     * Opens the channel for the server and the selectors of the reactors.
      * @param port the port on which the server should listen for new connections.
+     * @param reactorCount the number of worker reactors, 0 for the connection threads.
      * @throws IOException
      */
-    private void startServer(int port) throws IOException {
+    private void startServer(int port, int reactorCount) throws IOException {
         System.out.println("Booting the server!");
 
-        // Open the server channel.
+        // Open the server channel, the acceptor blocks on it.
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.bind(new InetSocketAddress(port));
-        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.configureBlocking(true);
+
+        if (reactorCount > 0) {
+            reactors = new Reactor[reactorCount];
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(this, "Reactor-" + i);
+            }
+            nextReactor = 0;
+        }
+        else {
+            connectionThreads = new ConnectionThreads(this);
+        }
 
-        // Register the channel into the selector.
-        selector = Selector.open();
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        fileCatalog.start();
     }
 
+    /**
+     * Accept new connections and hand them over to the reactors in round-robin order, or to threads of their own.
+     */
     @Override
     public void run() {
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                reactor.start();
+            }
+        }
+        else {
+            connectionThreads.start();
+        }
+
         while (true) {
             try {
-                // Get the ready channels.
-                int readyChannels = selector.select();
-                if (readyChannels == 0) continue;
-
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+                SocketChannel socketChannel = serverSocketChannel.accept();
 
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
+                // Old clients can not answer heartbeats, the keep-alive of TCP finds their dead connections.
+                socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
 
-                    // New connection from a client.
-                    if (key.isAcceptable()) {
-                        //System.out.println("New user joined the channel.");
-                        ServerSocketChannel server = (ServerSocketChannel) key.channel();
-                        server.configureBlocking(false);
-
-                        SocketChannel socketChannel = server.accept();
-                        socketChannel.configureBlocking(false);
-                        socketChannel.register(selector, SelectionKey.OP_READ);
-                    }
-                    // Received data from a client.
-                    else if (key.isReadable()) {
-                        handleEvents(key);
-                    }
-                    keyIterator.remove();
+                if (reactors == null) {
+                    connectionThreads.start(socketChannel);
+                    continue;
                 }
+
+                reactors[nextReactor].register(socketChannel);
+                nextReactor = (nextReactor + 1) % reactors.length;
             }
             catch (IOException exception) {
                 exception.printStackTrace();
@@ -101,19 +175,25 @@ public class ChatServer implements Runnable {
     }
 
     /**
-     * Method which checks for user credentials and makes new user.
-     * @param data the data which should be checked if it is user credentials.
-     * @return new User object.
-     * @throws IOException
+     * Handle the readiness of a client channel. Called by the reactor which owns the channel.
+     * @param key the selection key of the client.
      */
-    private User checkForUserCredentials(String data) throws IOException {
-        if (data.matches(".*:.*")) {
-            String[] credentials = data.split(":");
+    void handleClient(SelectionKey key) {
+        ReactorSession session = (ReactorSession) key.attachment();
 
-            return new User(credentials[0], credentials[1]);
+        try {
+            // Received data from a client.
+            if (key.isReadable()) {
+                handleEvents(key);
+            }
+            // The socket can take more of the queued data.
+            if (key.isValid() && key.isWritable()) {
+                session.flush();
+            }
+        }
+        catch (IOException exception) {
+            disconnect(session);
         }
-
-        return null;
     }
 
     /**
@@ -122,191 +202,1483 @@ public class ChatServer implements Runnable {
      * @throws IOException
      */
     private void handleEvents(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-
-        // Download a file.
-        if (fileChannels.containsKey(key)) {
-            FileChannelHelper fileChannelHelper = fileChannels.get(key);
+        ReactorSession session = (ReactorSession) key.attachment();
 
-            OperationHandler.getFile(key, fileChannelHelper);
+        // The data behind a request waits until the disk executor has answered it.
+        if (session.isSuspended()) {
+            return;
+        }
 
-            if (!fileChannelHelper.getFileChannel().isOpen()) {
-                fileChannels.remove(key);
-            }
+        // Download a file.
+        if (session.getUpload() != null) {
+            receiveFile(session, session.getUpload());
         }
         // Read data.
         else {
-            String data = OperationHandler.readData(socketChannel);
+            int readBytes = session.read();
 
-            // Check if the data is user credentials.
-            User user = checkForUserCredentials(data);
-            if (user != null) {
-                // Check if the user has account.
-                if (isActiveAccount(user)) {
-                    connectedUsers.put(user, socketChannel);
-                    connectedChannels.put(socketChannel, user);
-                }
-                // If not, cancel the connection.
-                else {
-                    OperationHandler.sendData(socketChannel, Constants.INVALID_USER);
-                }
+            handleBuffered(session);
+
+            // The client has closed the connection.
+            if (readBytes == -1 && key.isValid()) {
+                disconnect(session);
             }
-            // Check if the user wants to logout.
-            else if (data.contains(Constants.LOGOUT)) {
-                OperationHandler.sendData(socketChannel, "Server message: You have been logged out!");
+        }
+    }
+
+    /**
+     * Handle the complete messages in the decoder of a connection, until the rest of the data belongs to an
+     * upload or a request waits for the disk executor. Called by the reactor which owns the channel.
+     * @param session the session of the client.
+     * @throws IOException
+     */
+    private void handleBuffered(ReactorSession session) throws IOException {
+        Message message;
+        while (session.isOpen() && !session.isSuspended() && session.getUpload() == null
+                && (message = session.nextMessage()) != null) {
+            handleMessage(session, message);
+        }
 
-                User logout = connectedChannels.get(socketChannel);
+        // Store the file data which arrived together with the upload command.
+        FileChannelHelper upload = session.getUpload();
+        if (upload != null && (session.getDecoder().hasPending() || upload.isComplete())) {
+            receiveFile(session, upload);
+        }
+    }
 
-                connectedChannels.remove(socketChannel);
-                connectedUsers.remove(logout);
+    /**
+     * Run file system work of a session off the reactor. The reactor stops reading the connection until the
+     * outcome is back, so the messages behind the request are handled after it. The thread of a connection
+     * serves nobody else, it does the work itself.
+     * @param session the session which asked for the work.
+     * @param key the key of the file or the inbox, work with the same key runs in order.
+     * @param task the work.
+     * @throws IOException if too many file operations are waiting.
+     */
+    private <T> void runOnDisk(Session session, final Object key, final DiskTask<T> task) throws IOException {
+        if (!(session instanceof ReactorSession)) {
+            T result;
+            try {
+                result = task.call();
+            }
+            catch (IOException exception) {
+                task.failed(exception);
+                return;
             }
-            // Check if a file is being sent to the server.
-            else if (data.contains(Constants.FILE_UPLOAD)) {
-                String[] details = data.split("-");
 
-                File file = new File(Constants.FILE_DIR + details[1]);
-                file.createNewFile();
-                FileOutputStream fileOutputStream = new FileOutputStream(file);
-                FileChannel fileChannel = fileOutputStream.getChannel();
+            task.completed(result);
+            return;
+        }
 
-                System.out.println("Receiving file");
-                fileChannels.put(key, new FileChannelHelper(Integer.parseInt(details[2]), fileChannel));
-            }
-            // Check if a user wants to download a file.
-            else if (data.contains(Constants.FILE_DOWNLOAD)) {
-                String[] details = data.split("-");
+        final ReactorSession reactorSession = (ReactorSession) session;
 
-                File file = new File(Constants.FILE_DIR + details[1]);
+        diskExecutor.submit(key, new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                IOException failure = null;
 
-                if (file.exists()) {
-                    System.out.println("Server is sending file.");
-                    OperationHandler.sendFile(file, socketChannel);
+                try {
+                    result = task.call();
                 }
-                else {
-                    OperationHandler.sendData(socketChannel, Constants.FILE_NOT_FOUND);
-                    socketChannel.close();
-                    key.cancel();
+                catch (IOException exception) {
+                    failure = exception;
+                }
+                catch (RuntimeException exception) {
+                    failure = new IOException(exception);
                 }
+
+                final T outcome = result;
+                final IOException error = failure;
+                reactorSession.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeOnReactor(reactorSession, key, task, outcome, error);
+                    }
+                });
             }
-            // Check if the user requests the list of files stored on the server.
-            else if (data.equals(Constants.GET_FILE_LIST)) {
-                File dir = new File(Constants.FILE_DIR);
-                File[] fileList = dir.listFiles();
+        });
 
-                for (File file : fileList) {
-                    OperationHandler.sendData(socketChannel, file.getName());
-                }
+        reactorSession.suspendReading();
+    }
+
+    /**
+     * Hand the outcome of file system work to the session and continue with the messages behind the request.
+     * Called by the reactor which owns the channel.
+     * @param session the session which asked for the work.
+     * @param key the key of the file or the inbox.
+     * @param task the work.
+     * @param result the outcome.
+     * @param failure the failure of the work, or null.
+     */
+    private <T> void completeOnReactor(ReactorSession session, Object key, final DiskTask<T> task, final T result,
+                                       IOException failure) {
+        // The session has been closed meanwhile, e.g. an opened file is closed again.
+        if (!session.isOpen()) {
+            if (failure == null && result != null) {
+                diskExecutor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        task.discard(result);
+                    }
+                });
             }
-            // If none from above, broadcast the message.
-            else {
-                // Get the user who sent the message and exclude it.
-                User currentUser = connectedChannels.get(socketChannel);
+            return;
+        }
 
-                broadcastData(data, currentUser);
+        try {
+            if (failure != null) {
+                task.failed(failure);
+            }
+            else {
+                task.completed(result);
             }
+
+            session.resumeReading();
+            handleBuffered(session);
+        }
+        catch (IOException exception) {
+            disconnect(session);
         }
     }
 
     /**
-     * Method which sends the message to all users except the one which sent the message.
-     * @param data the message to be sent.
-     * @param currentUser the user which sent the message.
-     * @throws IOException
+     * Serve a connection with blocking reads until it is closed. Called on the reader thread of the connection.
+     * @param session the session of the connection.
      */
-    private void broadcastData(String data, User currentUser) throws IOException {
-        Set<User> keySet = connectedUsers.keySet();
-        int count = 0;
+    void serve(BlockingSession session) {
+        try {
+            while (session.isOpen()) {
+                // Receive a file, the data follows the upload command until the end of the connection.
+                FileChannelHelper upload = session.getUpload();
+                if (upload != null) {
+                    long position = upload.getPosition();
+                    receiveFile(session, upload);
+
+                    // The client has closed the connection before the end of the upload.
+                    if (session.isOpen() && upload.getPosition() == position) {
+                        disconnect(session);
+                    }
+                    continue;
+                }
+
+                int readBytes = session.read();
+
+                // Handle every complete message, stop when the rest of the data belongs to an upload.
+                session.lock();
+                try {
+                    Message message;
+                    while (session.isOpen() && session.getUpload() == null && (message = session.nextMessage()) != null) {
+                        handleMessage(session, message);
+                    }
+                }
+                finally {
+                    session.unlock();
+                }
 
-        for (User temp : keySet) {
-            if (temp.equals(currentUser)) {
-                continue;
+                // The client has closed the connection.
+                if (readBytes == -1 && session.getUpload() == null) {
+                    disconnect(session);
+                }
             }
+        }
+        catch (IOException exception) {
+            disconnect(session);
+        }
+        finally {
+            // Only this thread reads into the buffer of the decoder.
+            session.getDecoder().release();
+        }
+    }
 
-            SocketChannel socketChannel = connectedUsers.get(temp);
-            OperationHandler.sendData(socketChannel, currentUser.getUserName() + ": " + data);
-            count++;
+    /**
+     * Store the next part of an upload and give the file its name once it is complete. A reactor reads the
+     * part and has it written by the disk executor, the thread of a connection writes it itself.
+     * @param session the session of the upload channel, its decoder may still hold file data.
+     * @param fileChannelHelper the partial file with the upload's size or the end of the range.
+     * @throws IOException
+     */
+    private void receiveFile(Session session, FileChannelHelper fileChannelHelper) throws IOException {
+        if (session instanceof ReactorSession) {
+            receiveFragment((ReactorSession) session, fileChannelHelper);
+            return;
         }
 
-        // Send feedback to the user.
-        SocketChannel socketChannel = connectedUsers.get(currentUser);
-        OperationHandler.sendData(socketChannel, String.format(Constants.MESSAGE_SENT, count));
+        long position = fileChannelHelper.getPosition();
+        OperationHandler.receiveFile(session.getSocketChannel(), session.getDecoder(), fileChannelHelper);
+
+        fileStored(session, fileChannelHelper, fileChannelHelper.getPosition() - position);
     }
 
     /**
-     * Check if the user is allowed to log in the server
-     * @param user the user requesting access.
-     * @return true if the user is allowed to log in, false otherwise.
+     * Read the next fragment of an upload and have it written on the disk executor. Reading stops until the
+     * fragment has been stored, so the fragments go to the file one at a time and in order with the other
+     * work on it. Called by the reactor which owns the channel.
+     * @param session the session of the upload channel, its decoder may still hold file data.
+     * @param fileChannelHelper the partial file with the upload's size or the end of the range.
      * @throws IOException
      */
-    private boolean isActiveAccount(User user) throws IOException {
-        // Register the user.
-        if (!userAccounts.containsKey(user.getUserName())) {
-            String password = user.getUserPass();
-            // Password required in order to create an account.
-            if (password == null || password.equals("")) return false;
+    private void receiveFragment(final ReactorSession session, final FileChannelHelper fileChannelHelper)
+            throws IOException {
+        long left = fileChannelHelper.getSize() - fileChannelHelper.getPosition();
+
+        if (left <= 0) {
+            fileStored(session, fileChannelHelper, 0);
+            return;
+        }
 
-            userAccounts.put(user.getUserName(), password);
-            createAccount(user);
+        int size = (int) Math.min(left, Constants.DISK_FRAGMENT_SIZE);
+        final PooledBuffer fragment = BufferPool.getDefault().acquire(size);
+        ByteBuffer buffer = fragment.getBuffer();
 
-            return true;
+        // Bytes which arrived together with the upload command are still in the decoder.
+        if (session.getDecoder().hasPending()) {
+            session.getDecoder().drainTo(buffer);
         }
+        else {
+            int readBytes;
+            try {
+                readBytes = session.getSocketChannel().read(buffer);
+            }
+            catch (IOException exception) {
+                fragment.release();
+                throw exception;
+            }
 
-        // Check if the credentials are valid.
-        String temp = userAccounts.get(user.getUserName());
-        System.out.println(temp + " " + user.getUserPass());
-        if (!temp.equals(user.getUserPass())) {
-            return false;
+            if (readBytes <= 0) {
+                fragment.release();
+
+                // The client has closed the connection before the end of the upload.
+                if (readBytes < 0) {
+                    disconnect(session);
+                }
+                return;
+            }
         }
+        buffer.flip();
+
+        final int length = buffer.remaining();
+
+        // An abandoned upload releases its file behind the fragment.
+        diskExecutor.execute(fileKey(fileChannelHelper), new Runnable() {
+            @Override
+            public void run() {
+                IOException failure = null;
+
+                try {
+                    OperationHandler.writeFile(fileChannelHelper, fragment.getBuffer());
+                }
+                catch (IOException exception) {
+                    failure = exception;
+                }
+                finally {
+                    fragment.release();
+                }
 
-        // Check if the user is already logged in.
-        Set<User> users = connectedUsers.keySet();
-        String username = user.getUserName();
+                final IOException error = failure;
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!session.isOpen() || session.getUpload() != fileChannelHelper) {
+                            return;
+                        }
 
-        // Deny access if the user is already logged in.
-        for (User loggedUser : users) {
-            if (loggedUser.getUserName().equals(username)) {
-                return false;
+                        try {
+                            if (error != null) {
+                                throw error;
+                            }
+
+                            session.resumeReading();
+                            fileStored(session, fileChannelHelper, length);
+                            handleBuffered(session);
+                        }
+                        catch (IOException exception) {
+                            disconnect(session);
+                        }
+                    }
+                });
             }
+        });
+
+        session.suspendReading();
+    }
+
+    /**
+     * Account for a stored part of an upload, and finish the file with its last byte.
+     * @param session the session of the upload channel.
+     * @param fileChannelHelper the partial file with the upload's size or the end of the range.
+     * @param length the length of the part.
+     */
+    private void fileStored(Session session, FileChannelHelper fileChannelHelper, long length) {
+        session.fileReceived(length);
+
+        // The file is finished before the client can ask for it again, requests for the same file wait behind
+        // it on the disk executor.
+        if (fileChannelHelper.isComplete()) {
+            finishFile(fileChannelHelper);
+
+            session.setUpload(null);
+            disconnect(session);
         }
+    }
 
-        return true;
+    /**
+     * Have the next fragment of a download whose file is not cached read by the disk executor. The reactor
+     * writes it to the client once it is there.
+     * @param session the session of the download.
+     * @param download the file with the position of the fragment.
+     */
+    void readDownload(final ReactorSession session, final FileChannelHelper download) {
+        diskExecutor.execute(download.getFile().getPath(), new Runnable() {
+            @Override
+            public void run() {
+                PooledBuffer fragment = null;
+
+                try {
+                    fragment = OperationHandler.readFile(download, BufferPool.getDefault());
+                }
+                catch (IOException exception) {
+                    // The file can not be read, or the download has been closed meanwhile.
+                }
+
+                final PooledBuffer read = fragment;
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (read == null) {
+                                throw new IOException("The file could not be read");
+                            }
+                            session.downloadRead(download, read);
+                        }
+                        catch (IOException exception) {
+                            if (session.isOpen()) {
+                                disconnect(session);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Force a received file to the disk, give it its name and list it, on the disk executor.
+     * @param fileChannelHelper the file or the range whose last byte has been stored.
+     */
+    private void finishFile(final FileChannelHelper fileChannelHelper) {
+        diskExecutor.execute(fileKey(fileChannelHelper), new Runnable() {
+            @Override
+            public void run() {
+                completeFile(fileChannelHelper);
+            }
+        });
     }
 
     /**
-     * Store the list of active accounts in the memory.
+     * Force a received file to the disk, give it its name and list it. Called on a disk thread.
+     * @param fileChannelHelper the file or the range whose last byte has been stored.
+     * @return false if the file could not be stored.
+     */
+    private boolean completeFile(FileChannelHelper fileChannelHelper) {
+        try {
+            // Other connections may still be writing their ranges of the file.
+            if (!OperationHandler.finishFile(fileChannelHelper)) {
+                return true;
+            }
+
+            FileAssembly assembly = fileChannelHelper.getAssembly();
+            if (assembly != null) {
+                synchronized (fileAssemblies) {
+                    fileAssemblies.remove(assembly.getFile().getPath(), assembly);
+                }
+            }
+
+            File file = OperationHandler.completePartialFile(fileChannelHelper);
+
+            // Downloads which start from now on send the new content.
+            fileCache.invalidate(file);
+            fileCatalog.update(file);
+
+            return true;
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Open a file for a download, from the file cache if it fits. Called on a disk thread.
+     * @param file the file.
+     * @return the whole file, or null if it does not exist.
      * @throws IOException
      */
-    private void loadUsers() throws IOException {
-        File accounts = new File("accounts.txt");
-        if (!accounts.exists()) {
-            accounts.createNewFile();
+    private FileChannelHelper openDownload(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
         }
 
-        FileInputStream fileInputStream = new FileInputStream(accounts);
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(fileInputStream));
+        // Concurrent downloads of a cached file share its mapping, others open the file.
+        MappedFile mappedFile = fileCache.acquire(file);
 
-        for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
-            String[] pair = line.split(":");
-            userAccounts.put(pair[0], pair[1]);
+        if (mappedFile != null) {
+            FileChannelHelper fileChannelHelper = new FileChannelHelper(file, mappedFile.getSize(), 0, null);
+            fileChannelHelper.setMappedFile(mappedFile);
+
+            return fileChannelHelper;
         }
+
+        FileChannel fileChannel = new FileInputStream(file).getChannel();
+
+        return new FileChannelHelper(file, fileChannel.size(), 0, fileChannel);
+    }
+
+    /**
+     * Get the key under which the disk executor orders the work on a transferred file.
+     * @param fileChannelHelper the partial file of an upload.
+     * @return the path of the complete file.
+     */
+    private static String fileKey(FileChannelHelper fileChannelHelper) {
+        return OperationHandler.getCompleteFile(fileChannelHelper.getFile()).getPath();
     }
 
     /**
-     * Create a new account.
-     * @param user the account to be created.
+     * Start receiving a range of a file which is uploaded over several connections.
+     * @param file the uploaded file.
+     * @param size the size of the whole file.
+     * @param offset the position of the range.
+     * @param length the length of the range.
+     * @return the file channel helper of the range.
      * @throws IOException
      */
-    private void createAccount(User user) throws IOException {
-        File accounts = new File("accounts.txt");
-        if (!accounts.exists()) {
-            accounts.createNewFile();
+    private FileChannelHelper openUploadRange(File file, long size, long offset, long length) throws IOException {
+        synchronized (fileAssemblies) {
+            FileAssembly assembly = fileAssemblies.get(file.getPath());
+
+            // The first range creates the file, the others write into it.
+            if (assembly == null || assembly.isClosed() || assembly.getSize() != size) {
+                assembly = FileAssembly.open(file, size);
+                fileAssemblies.put(file.getPath(), assembly);
+            }
+
+            return assembly.openRange(offset, length);
         }
+    }
+
+    /**
+     * Handle a single message received from a client.
+     * @param session the session of the client.
+     * @param message the received message.
+     * @throws IOException
+     */
+    private void handleMessage(final Session session, final Message message) throws IOException {
+        switch (message.getOpcode()) {
+            // The user sends credentials.
+            case Protocol.LOGIN: {
+                User user = new User(message.getString(0), message.getString(1));
+
+                // A session logs in only once.
+                if (session.getState() != Session.State.CONNECTED) {
+                    session.send(new Message(Protocol.INVALID_USER));
+                }
+                // Register the user, the login completes once the account has been stored.
+                else if (accountStore.getPassword(user.getUserName()) == null) {
+                    if (!register(user, session)) {
+                        session.send(new Message(Protocol.INVALID_USER));
+                    }
+                }
+                else {
+                    completeLogin(user, session);
+                }
+                break;
+            }
+            // The user wants to logout.
+            case Protocol.LOGOUT: {
+                session.send(new Message(Protocol.SERVER_MESSAGE, "Server message: You have been logged out!"));
+
+                roomRegistry.logout(session);
+                sessionRegistry.logout(session);
+                break;
+            }
+            // The client checks that the server is alive.
+            case Protocol.PING: {
+                session.send(new Message(Protocol.PONG));
+                break;
+            }
+            // The client answers a heartbeat, the read has already been noted.
+            case Protocol.PONG: {
+                break;
+            }
+            // The client asks how much of an interrupted upload the server already has.
+            case Protocol.FILE_OFFSET: {
+                final File file = OperationHandler.getServerFile(message.getString(0));
+
+                runOnDisk(session, file.getPath(), new DiskTask<Long>() {
+                    @Override
+                    public Long call() {
+                        return OperationHandler.getPartialFile(file).length();
+                    }
+
+                    @Override
+                    public void completed(Long length) throws IOException {
+                        session.send(new Message(Protocol.FILE_OFFSET, message.getString(0), length));
+                    }
+                });
+                break;
+            }
+            // A file is being sent to the server, starting at the given offset.
+            case Protocol.FILE_UPLOAD: {
+                final File file = OperationHandler.getServerFile(message.getString(0));
+
+                System.out.println("Receiving file");
+
+                runOnDisk(session, file.getPath(), new DiskTask<FileChannelHelper>() {
+                    @Override
+                    public FileChannelHelper call() throws IOException {
+                        // A range of a file which is uploaded over several connections.
+                        if (message.getFieldCount() > 3) {
+                            return openUploadRange(file, message.getLong(1), message.getLong(2), message.getLong(3));
+                        }
+
+                        return OperationHandler.openPartialFile(file, message.getLong(1), message.getLong(2, 0));
+                    }
+
+                    @Override
+                    public void completed(FileChannelHelper fileChannelHelper) {
+                        session.setUpload(fileChannelHelper);
+                    }
+
+                    @Override
+                    public void discard(FileChannelHelper fileChannelHelper) {
+                        closeFile(fileChannelHelper);
+                    }
+                });
+                break;
+            }
+            // The client asks for the size of a file before it downloads it.
+            case Protocol.FILE_INFO: {
+                final File file = OperationHandler.getServerFile(message.getString(0));
+
+                runOnDisk(session, file.getPath(), new DiskTask<Long>() {
+                    @Override
+                    public Long call() {
+                        return file.exists() ? file.length() : -1L;
+                    }
+
+                    @Override
+                    public void completed(Long length) throws IOException {
+                        if (length >= 0) {
+                            session.send(new Message(Protocol.FILE_INFO, file.getName(), length));
+                        }
+                        else {
+                            session.send(new Message(Protocol.FILE_NOT_FOUND, message.getString(0)));
+                        }
+                    }
+                });
+                break;
+            }
+            // The user wants to download a file.
+            case Protocol.FILE_DOWNLOAD: {
+                final File file = OperationHandler.getServerFile(message.getString(0));
 
-        FileOutputStream fileOutputStream = new FileOutputStream(accounts, true);
-        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(fileOutputStream));
+                runOnDisk(session, file.getPath(), new DiskTask<FileChannelHelper>() {
+                    private long size;
 
-        bufferedWriter.write(user.getUserName() + ":" + user.getUserPass());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
+                    @Override
+                    public FileChannelHelper call() throws IOException {
+                        FileChannelHelper fileChannelHelper = openDownload(file);
+                        if (fileChannelHelper == null) {
+                            return null;
+                        }
+
+                        size = fileChannelHelper.getSize();
+                        long offset = Math.min(message.getLong(1, 0), size);
+                        long length = Math.min(message.getLong(2, size), size - offset);
+
+                        fileChannelHelper.setPosition(offset);
+                        fileChannelHelper.setSize(offset + length);
+
+                        return fileChannelHelper;
+                    }
+
+                    @Override
+                    public void completed(FileChannelHelper fileChannelHelper) throws IOException {
+                        if (fileChannelHelper == null) {
+                            session.send(new Message(Protocol.FILE_NOT_FOUND, message.getString(0)));
+                            session.closeAfterFlush();
+                            return;
+                        }
+
+                        System.out.println("Server is sending file.");
+
+                        long offset = fileChannelHelper.getPosition();
+                        long length = fileChannelHelper.getSize() - offset;
+
+                        // Send the header, the range follows from the offset on the writable events of the channel.
+                        if (message.getFieldCount() > 2) {
+                            session.send(new Message(Protocol.FILE_UPLOAD, file.getName(), size, offset, length));
+                        }
+                        else {
+                            session.send(new Message(Protocol.FILE_UPLOAD, file.getName(), size, offset));
+                        }
+                        session.startDownload(fileChannelHelper);
+                    }
+
+                    @Override
+                    public void discard(FileChannelHelper fileChannelHelper) {
+                        try {
+                            fileChannelHelper.close();
+                        }
+                        catch (IOException exception) {
+                            exception.printStackTrace();
+                        }
+                    }
+                });
+                break;
+            }
+            // The client opens a file stream on the chat connection.
+            case Protocol.STREAM_OPEN: {
+                openStream(session, message);
+                break;
+            }
+            // A chunk of a file which the client uploads as a stream.
+            case Protocol.STREAM_DATA: {
+                receiveStream(session, message.getLong(0), message.getBytes(1));
+                break;
+            }
+            // The client grants a stream which it downloads more data.
+            case Protocol.STREAM_WINDOW: {
+                FileStream stream = session.getFileStreams().get(message.getLong(0));
+
+                if (stream != null && stream.isSending()) {
+                    stream.addWindow(message.getLong(1));
+                    readAhead(session, stream);
+                    session.streamReady();
+                }
+                break;
+            }
+            // The client cancels a stream.
+            case Protocol.STREAM_END: {
+                FileStream stream = session.getFileStreams().remove(message.getLong(0));
+
+                if (stream != null) {
+                    closeStream(session, stream);
+                }
+                break;
+            }
+            // The user requests the list of files stored on the server.
+            case Protocol.GET_FILE_LIST: {
+                session.send(listFiles(message, session.isBinary()));
+                break;
+            }
+            // The user asks for the messages after a sequence number, or for the latest messages if it is negative.
+            case Protocol.HISTORY: {
+                if (session.isLoggedIn() && session.getStreamCount() < Constants.MAX_STREAMS) {
+                    long afterSequence = message.getLong(0);
+
+                    if (afterSequence < 0) {
+                        afterSequence = chatHistory.getLastSequence() - message.getLong(1, Constants.HISTORY_REPLAY_COUNT);
+                    }
+                    session.startStream(new HistoryReplay(chatHistory, afterSequence));
+                }
+                break;
+            }
+            // The user joins a room, which is created if it does not exist.
+            case Protocol.JOIN: {
+                String roomName = message.getString(0);
+
+                if (!session.isLoggedIn()) {
+                    break;
+                }
+
+                if (Room.isValidName(roomName)) {
+                    Room room = roomRegistry.join(roomName, session);
+                    session.send(new Message(Protocol.JOIN, roomName, (long) room.size()));
+                }
+                else {
+                    session.send(new Message(Protocol.SERVER_MESSAGE, "Invalid room name " + roomName));
+                }
+                break;
+            }
+            // The user leaves a room.
+            case Protocol.LEAVE: {
+                String roomName = message.getString(0);
+
+                if (roomRegistry.leave(roomName, session)) {
+                    session.send(new Message(Protocol.LEAVE, roomName));
+                }
+                else {
+                    session.send(new Message(Protocol.SERVER_MESSAGE, "You are not in #" + roomName));
+                }
+                break;
+            }
+            // The user requests the list of rooms.
+            case Protocol.ROOMS: {
+                List<Object> fields = new ArrayList<Object>();
+
+                for (Room room : roomRegistry.list(Constants.ROOM_LIST_SIZE)) {
+                    fields.add(room.getName());
+                    fields.add((long) room.size());
+                }
+
+                session.send(new Message(Protocol.ROOM_LIST, fields.toArray()));
+                break;
+            }
+            // Send the message to the members of a room.
+            case Protocol.ROOM_MESSAGE: {
+                if (session.isLoggedIn() && checkText(message.getString(1), session)) {
+                    sendToRoom(message.getString(0), message.getString(1), session);
+                }
+                break;
+            }
+            // Send the message to a single user.
+            case Protocol.DIRECT: {
+                if (session.isLoggedIn() && checkText(message.getString(1), session)) {
+                    sendDirect(message.getString(0), message.getString(1), session);
+                }
+                break;
+            }
+            // Broadcast the chat message.
+            case Protocol.CHAT: {
+                // Only logged in users may chat.
+                if (session.isLoggedIn() && checkText(message.getString(0), session)) {
+                    broadcastData(message.getString(0), session);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unexpected opcode " + message.getOpcode());
+        }
+    }
+
+    /**
+     * Check that the text of a message fits into the frames which relay it together with the names of the
+     * sender and the room, and tell the sender if it does not.
+     * @param text the text of the message.
+     * @param session the session of the sender.
+     * @return true if the message may be relayed.
+     * @throws IOException
+     */
+    private boolean checkText(String text, Session session) throws IOException {
+        if (Protocol.utf8Length(text) <= Constants.MAX_TEXT_LENGTH) {
+            return true;
+        }
+
+        session.send(new Message(Protocol.SERVER_MESSAGE, "Message exceeds " + Constants.MAX_TEXT_LENGTH + " bytes"));
+
+        return false;
+    }
+
+    /**
+     * Open a file stream which the client has asked for. An upload resumes at the end of the partial file, a
+     * download starts at the offset of the client. The server answers with the size and the offset of the
+     * stream, or ends it if the file can not be opened.
+     * @param session the session of the client.
+     * @param request the STREAM_OPEN message with the id, the direction, the name, the size and the offset.
+     * @throws IOException
+     */
+    private void openStream(final Session session, final Message request) throws IOException {
+        final long id = request.getLong(0);
+        final boolean upload = request.getLong(1) == Protocol.STREAM_UPLOAD;
+        final String name = request.getString(2);
+        final File file = OperationHandler.getServerFile(name);
+
+        if (session.getFileStreams().contains(id) || session.getFileStreams().size() >= Constants.MAX_FILE_STREAMS) {
+            session.send(new Message(Protocol.STREAM_END, id, Protocol.STREAM_FAILED));
+            return;
+        }
+
+        runOnDisk(session, file.getPath(), new DiskTask<FileChannelHelper>() {
+            @Override
+            public FileChannelHelper call() throws IOException {
+                if (upload) {
+                    long size = request.getLong(3);
+                    long offset = Math.min(OperationHandler.getPartialFile(file).length(), size);
+
+                    return OperationHandler.openPartialFile(file, size, offset);
+                }
+
+                FileChannelHelper fileChannelHelper = openDownload(file);
+                if (fileChannelHelper != null) {
+                    fileChannelHelper.setPosition(Math.min(request.getLong(4), fileChannelHelper.getSize()));
+                }
+
+                return fileChannelHelper;
+            }
+
+            @Override
+            public void completed(FileChannelHelper fileChannelHelper) throws IOException {
+                if (fileChannelHelper == null) {
+                    session.send(new Message(Protocol.STREAM_END, id, Protocol.STREAM_NOT_FOUND));
+                    return;
+                }
+
+                // A reactor has the chunks of a file which is not cached read by the disk executor.
+                FileStream stream = new FileStream(id, !upload, fileChannelHelper, session instanceof ReactorSession);
+                session.getFileStreams().add(stream);
+                session.getMetrics().transferStarted();
+
+                session.send(new Message(Protocol.STREAM_OPEN, id, request.getLong(1), file.getName(),
+                        fileChannelHelper.getSize(), fileChannelHelper.getPosition()));
+
+                // Nothing is left to transfer, e.g. the partial file has already been complete.
+                if (stream.isComplete()) {
+                    session.getFileStreams().remove(id);
+
+                    if (upload) {
+                        finishStream(session, stream);
+                    }
+                    else {
+                        closeStream(session, stream);
+                    }
+                }
+                else if (!upload) {
+                    readAhead(session, stream);
+                    session.streamReady();
+                }
+            }
+
+            @Override
+            public void failed(IOException exception) throws IOException {
+                session.send(new Message(Protocol.STREAM_END, id, Protocol.STREAM_FAILED));
+            }
+
+            @Override
+            public void discard(FileChannelHelper fileChannelHelper) {
+                if (upload) {
+                    closeFile(fileChannelHelper);
+                    return;
+                }
+
+                try {
+                    fileChannelHelper.close();
+                }
+                catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Store a chunk of a file which the client uploads as a stream, and grant the client more data. A reactor
+     * copies the chunk and has it written by the disk executor, the window of the stream bounds the chunks
+     * which wait there. The thread of a connection writes it itself.
+     * @param session the session of the client.
+     * @param id the id of the stream.
+     * @param data the chunk.
+     * @throws IOException if the client has sent more than it may.
+     */
+    private void receiveStream(final Session session, final long id, ByteBuffer data) throws IOException {
+        final FileStream stream = session.getFileStreams().get(id);
+
+        // The chunk of a stream which has been ended meanwhile.
+        if (stream == null || stream.isSending()) {
+            return;
+        }
+
+        if (!(session instanceof ReactorSession)) {
+            streamWritten(session, stream, stream.receive(data));
+            return;
+        }
+
+        final int length = data.remaining();
+        final long position = stream.accept(length);
+        final PooledBuffer chunk = BufferPool.getDefault().acquire(length);
+        chunk.getBuffer().put(data).flip();
+
+        // The chunks of a file are written in order, a cancelled stream releases its file behind them.
+        diskExecutor.execute(fileKey(stream.getFileChannelHelper()), new Runnable() {
+            @Override
+            public void run() {
+                IOException failure = null;
+
+                try {
+                    stream.write(chunk.getBuffer(), position);
+                }
+                catch (IOException exception) {
+                    failure = exception;
+                }
+                finally {
+                    chunk.release();
+                }
+
+                final IOException error = failure;
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!session.isOpen()) {
+                            return;
+                        }
+
+                        try {
+                            if (error != null) {
+                                throw error;
+                            }
+                            streamWritten(session, stream, length);
+                        }
+                        catch (IOException exception) {
+                            disconnect(session);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Account for a chunk of an uploaded stream which has been written, and finish the stream with its last
+     * chunk or grant the client more data.
+     * @param session the session of the client.
+     * @param stream the stream.
+     * @param length the length of the chunk.
+     * @throws IOException
+     */
+    private void streamWritten(Session session, FileStream stream, int length) throws IOException {
+        session.fileReceived(length);
+
+        // The stream has been cancelled meanwhile.
+        if (session.getFileStreams().get(stream.getId()) != stream) {
+            return;
+        }
+
+        stream.written(length);
+
+        if (stream.isComplete()) {
+            session.getFileStreams().remove(stream.getId());
+            finishStream(session, stream);
+            return;
+        }
+
+        long grant = stream.takeGrant();
+        if (grant > 0) {
+            session.send(new Message(Protocol.STREAM_WINDOW, stream.getId(), grant));
+        }
+    }
+
+    /**
+     * Have the next chunk of a downloaded stream read by the disk executor, if the stream reads ahead and
+     * has none. The writer of the session is told once it is there.
+     * @param session the session of the client.
+     * @param stream the stream.
+     */
+    void readAhead(final Session session, final FileStream stream) {
+        if (!stream.startReadAhead()) {
+            return;
+        }
+
+        diskExecutor.execute(fileKey(stream.getFileChannelHelper()), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream.readAhead(BufferPool.getDefault());
+                    session.streamReady();
+                }
+                catch (IOException exception) {
+                    session.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            failStream(session, stream);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * End a downloaded stream whose file could not be read.
+     * @param session the session of the client.
+     * @param stream the stream.
+     */
+    private void failStream(Session session, FileStream stream) {
+        if (!session.isOpen() || session.getFileStreams().get(stream.getId()) != stream) {
+            return;
+        }
+
+        session.getFileStreams().remove(stream.getId());
+        closeStream(session, stream);
+
+        try {
+            session.send(new Message(Protocol.STREAM_END, stream.getId(), Protocol.STREAM_FAILED));
+        }
+        catch (IOException exception) {
+            disconnect(session);
+        }
+    }
+
+    /**
+     * Give an uploaded stream its name on the disk executor and tell the client once the file is stored. The
+     * chat goes on while the file is forced to the disk.
+     * @param session the session of the client.
+     * @param stream the stream whose last byte has been stored.
+     */
+    private void finishStream(final Session session, final FileStream stream) {
+        final FileChannelHelper fileChannelHelper = stream.getFileChannelHelper();
+
+        session.getMetrics().transferEnded();
+
+        diskExecutor.execute(fileKey(fileChannelHelper), new Runnable() {
+            @Override
+            public void run() {
+                final boolean stored = completeFile(fileChannelHelper);
+
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!session.isOpen()) {
+                            return;
+                        }
+
+                        try {
+                            session.send(new Message(Protocol.STREAM_END, stream.getId(),
+                                    stored ? Protocol.STREAM_OK : Protocol.STREAM_FAILED));
+                        }
+                        catch (IOException exception) {
+                            disconnect(session);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Close a stream which has been cancelled or whose connection has been closed. A partial upload stays on
+     * the disk for a later resume.
+     * @param session the session of the client.
+     * @param stream the stream, which has been removed from the session.
+     */
+    private void closeStream(Session session, FileStream stream) {
+        session.getMetrics().transferEnded();
+
+        if (!stream.isSending()) {
+            releaseFile(stream.getFileChannelHelper());
+            return;
+        }
+
+        try {
+            stream.close();
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Answer a request for the file list from the catalog with a single message.
+     * @param request the request with the optional prefix of the names, the name of the last file of the
+     *                previous page and the size of the page.
+     * @param binary true if the page is sent as a binary frame, false if it goes to an old client.
+     * @return the page of the file list.
+     */
+    private Message listFiles(Message request, boolean binary) {
+        String prefix = request.getFieldCount() > 0 ? request.getString(0) : "";
+        String after = request.getFieldCount() > 1 ? request.getString(1) : "";
+
+        // Old clients can not ask for further pages, so they get the whole list.
+        int limit = Integer.MAX_VALUE;
+        if (binary) {
+            limit = (int) Math.max(1, Math.min(request.getLong(2, Constants.FILE_LIST_PAGE_SIZE), Constants.FILE_LIST_PAGE_SIZE));
+        }
+
+        List<FileEntry> entries = fileCatalog.list(prefix, after, limit);
+        boolean more = entries.size() > limit;
+        int count = Math.min(entries.size(), limit);
+
+        List<Object> fields = new ArrayList<Object>(1 + 3 * count);
+        fields.add(0L);
+
+        // A frame must fit into the decoder of the client, every character of a name takes at most 3 bytes.
+        int budget = Constants.MAX_MESSAGE_SIZE - Protocol.LENGTH_SIZE - 1 - 9;
+        for (int i = 0; i < count; i++) {
+            FileEntry entry = entries.get(i);
+            int entrySize = 3 + 3 * entry.getName().length() + 2 * 9;
+
+            if (binary && entrySize > budget) {
+                more = true;
+                break;
+            }
+            budget -= entrySize;
+
+            fields.add(entry.getName());
+            fields.add(entry.getSize());
+            fields.add(entry.getLastModified());
+        }
+
+        fields.set(0, more ? 1L : 0L);
+
+        return new Message(Protocol.FILE_LIST, fields.toArray());
+    }
+
+    /**
+     * Close the connection of a client and forget its user.
+     * @param session the session of the client.
+     */
+    void disconnect(Session session) {
+        roomRegistry.logout(session);
+        sessionRegistry.logout(session);
+
+        FileChannelHelper fileChannelHelper = session.getUpload();
+        session.setUpload(null);
+
+        for (FileStream stream : session.getFileStreams().removeAll()) {
+            closeStream(session, stream);
+        }
+
+        try {
+            if (fileChannelHelper != null) {
+                releaseFile(fileChannelHelper);
+            }
+            session.close();
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Close the file of an upload which will not be completed, on the disk executor.
+     * @param fileChannelHelper the abandoned upload.
+     */
+    private void releaseFile(final FileChannelHelper fileChannelHelper) {
+        diskExecutor.execute(fileKey(fileChannelHelper), new Runnable() {
+            @Override
+            public void run() {
+                closeFile(fileChannelHelper);
+            }
+        });
+    }
+
+    /**
+     * Close the file of an upload which will not be completed. Called on a disk thread.
+     * @param fileChannelHelper the abandoned upload.
+     */
+    private void closeFile(FileChannelHelper fileChannelHelper) {
+        FileAssembly assembly = fileChannelHelper.getAssembly();
+
+        try {
+            if (assembly == null) {
+                fileChannelHelper.getFileChannel().close();
+                return;
+            }
+
+            // Other connections may still be writing their ranges of the file.
+            synchronized (fileAssemblies) {
+                if (assembly.release()) {
+                    fileAssemblies.remove(assembly.getFile().getPath(), assembly);
+                }
+            }
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Method which sends the message to all users except the one which sent the message.
+     * @param data the message to be sent.
+     * @param sender the session of the user which sent the message.
+     * @throws IOException
+     */
+    private void broadcastData(String data, Session sender) throws IOException {
+        // Store the message, recipients learn its sequence number so they can ask for what they miss later.
+        HistoryEntry entry = chatHistory.append(sender.getUserName(), data);
+
+        Message message = new Message(Protocol.CHAT, sender.getUserName(), data, entry.getSequence());
+        int count = sendToAll(message, sessionRegistry.getSessions(), sender);
+
+        // Send feedback to the user.
+        sender.send(new Message(Protocol.SERVER_MESSAGE, String.format(Constants.MESSAGE_SENT, count)));
+    }
+
+    /**
+     * Send a message to the members of a room except the one which sent the message. Members which are
+     * offline get it into their inboxes.
+     * @param roomName the name of the room.
+     * @param data the message to be sent.
+     * @param sender the session of the user which sent the message.
+     * @throws IOException
+     */
+    private void sendToRoom(String roomName, String data, Session sender) throws IOException {
+        Room room = roomRegistry.get(roomName);
+
+        if (room == null || !room.contains(sender)) {
+            sender.send(new Message(Protocol.SERVER_MESSAGE, "You are not in #" + roomName));
+            return;
+        }
+
+        Message message = new Message(Protocol.ROOM_MESSAGE, roomName, sender.getUserName(), data);
+        int count = sendToAll(message, room.getMembers(), sender);
+
+        if (!room.getOffline().isEmpty()) {
+            PooledBuffer frame = Protocol.encode(message, BufferPool.getDefault());
+
+            // A full inbox drops the message for its user only.
+            try {
+                for (String userName : room.getOffline()) {
+                    deliver(userName, frame.duplicate());
+                }
+            }
+            finally {
+                frame.release();
+            }
+        }
+
+        sender.send(new Message(Protocol.SERVER_MESSAGE, String.format(Constants.MESSAGE_SENT, count)));
+    }
+
+    /**
+     * Send a private message to a user and tell the sender whether it has been delivered. The message for a
+     * user with an account who is offline is kept in the inbox of the user.
+     * @param recipientName the name of the recipient.
+     * @param data the message to be sent.
+     * @param sender the session of the user which sent the message.
+     * @throws IOException
+     */
+    private void sendDirect(String recipientName, String data, Session sender) throws IOException {
+        Session recipient = sessionRegistry.get(recipientName);
+        Message message = new Message(Protocol.DIRECT, sender.getUserName(), data);
+        long status = Protocol.DIRECT_FAILED;
+
+        if (recipient != null) {
+            try {
+                recipient.send(message);
+                status = Protocol.DIRECT_DELIVERED;
+            }
+            catch (IOException exception) {
+                disconnect(recipient);
+            }
+        }
+        else if (accountStore.getPassword(recipientName) != null) {
+            storeDirect(recipientName, message, sender);
+            return;
+        }
+
+        sender.send(new Message(Protocol.DIRECT_ACK, recipientName, status));
+    }
+
+    /**
+     * Keep a private message in the inbox of a user who is offline and tell the sender whether it has been
+     * stored. The inbox is written by the disk executor.
+     * @param recipientName the name of the recipient.
+     * @param message the message.
+     * @param sender the session of the user which sent the message.
+     * @throws IOException
+     */
+    private void storeDirect(final String recipientName, final Message message, final Session sender) throws IOException {
+        runOnDisk(sender, recipientName, new DiskTask<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                PooledBuffer frame = Protocol.encode(message, BufferPool.getDefault());
+
+                try {
+                    return inboxStore.deliver(recipientName, frame.getBuffer());
+                }
+                finally {
+                    frame.release();
+                }
+            }
+
+            @Override
+            public void completed(Boolean stored) throws IOException {
+                long status = stored ? Protocol.DIRECT_STORED : Protocol.DIRECT_FAILED;
+                sender.send(new Message(Protocol.DIRECT_ACK, recipientName, status));
+            }
+        });
+    }
+
+    /**
+     * Keep a message in the inbox of a user who is offline, on the disk executor. The message is dropped if
+     * the inbox is full or too many file operations are waiting.
+     * @param userName the name of the user.
+     * @param frame the message as a binary frame, which is released.
+     */
+    private void deliver(final String userName, final PooledBuffer frame) {
+        try {
+            diskExecutor.submit(userName, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        inboxStore.deliver(userName, frame.getBuffer());
+                    }
+                    catch (IOException exception) {
+                        exception.printStackTrace();
+                    }
+                    finally {
+                        frame.release();
+                    }
+                }
+            });
+        }
+        catch (IOException exception) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Send a message to a group of sessions.
+     * @param message the message.
+     * @param sessions the recipients.
+     * @param sender the session which is skipped.
+     * @return the number of recipients.
+     */
+    private int sendToAll(Message message, Iterable<Session> sessions, Session sender) {
+        long start = System.nanoTime();
+        int count = 0;
+
+        // Encode the message once per protocol into a pooled buffer, every recipient gets its own view of the
+        // same bytes which holds a reference until it has been written.
+        PooledBuffer binaryFrame = null;
+        PooledBuffer textFrame = null;
+
+        try {
+            for (Session session : sessions) {
+                if (session == sender) {
+                    continue;
+                }
+
+                PooledBuffer frame;
+                if (session.isBinary()) {
+                    if (binaryFrame == null) {
+                        binaryFrame = Protocol.encode(message, true, BufferPool.getDefault());
+                    }
+                    frame = binaryFrame;
+                }
+                else {
+                    if (textFrame == null) {
+                        textFrame = Protocol.encode(message, false, BufferPool.getDefault());
+                    }
+                    frame = textFrame;
+                }
+
+                // A client which can not keep up is dropped instead of stopping the broadcast.
+                try {
+                    session.sendEncoded(frame.duplicate());
+                    count++;
+                }
+                catch (IOException exception) {
+                    disconnect(session);
+                }
+            }
+        }
+        finally {
+            if (binaryFrame != null) {
+                binaryFrame.release();
+            }
+            if (textFrame != null) {
+                textFrame.release();
+            }
+        }
+
+        metrics.getFanOut().record(System.nanoTime() - start);
+
+        return count;
+    }
+
+    /**
+     * Create an account for a new user. The account is written to the journal together with the other
+     * registrations of the moment and the user is logged in by the reactor once it is durable.
+     * @param user the user requesting access.
+     * @param session the chatting session of the user.
+     * @return true if the account is being created, false if it can not be created.
+     */
+    private boolean register(final User user, final Session session) {
+        String password = user.getUserPass();
+        // Password required in order to create an account.
+        if (password == null || password.equals("")) return false;
+
+        session.setState(Session.State.REGISTERING);
+
+        boolean registered = accountStore.register(user.getUserName(), password, new AccountStore.CommitCallback() {
+            @Override
+            public void committed() {
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (session.getState() == Session.State.REGISTERING) {
+                                session.setState(Session.State.CONNECTED);
+                                completeLogin(user, session);
+                            }
+                        }
+                        catch (IOException exception) {
+                            disconnect(session);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failed(IOException exception) {
+                exception.printStackTrace();
+
+                session.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (session.getState() == Session.State.REGISTERING) {
+                                session.setState(Session.State.CONNECTED);
+                                session.send(new Message(Protocol.INVALID_USER));
+                            }
+                        }
+                        catch (IOException exception) {
+                            disconnect(session);
+                        }
+                    }
+                });
+            }
+        });
+
+        if (!registered) {
+            session.setState(Session.State.CONNECTED);
+        }
+
+        return registered;
+    }
+
+    /**
+     * Log in a user with an account and tell the client the outcome. The user is brought back into its rooms
+     * and gets the messages of its inbox.
+     * @param user the user requesting access.
+     * @param session the chatting session of the user.
+     * @throws IOException
+     */
+    private void completeLogin(User user, Session session) throws IOException {
+        // Check if the user has account.
+        if (isActiveAccount(user) && sessionRegistry.login(session, user.getUserName())) {
+            session.send(new Message(Protocol.LOGIN_OK, user.getUserName()));
+
+            for (Room room : roomRegistry.login(session)) {
+                session.send(new Message(Protocol.JOIN, room.getName(), (long) room.size()));
+            }
+
+            // The disk executor finds out whether the inbox holds messages.
+            InboxDrain inboxDrain = new InboxDrain(inboxStore.get(user.getUserName()), diskExecutor, user.getUserName());
+            inboxDrain.start(session);
+            session.startStream(inboxDrain);
+        }
+        // If not, cancel the connection.
+        else {
+            session.send(new Message(Protocol.INVALID_USER));
+        }
+    }
+
+    /**
+     * Check if the credentials of the user are valid.
+     * @param user the user requesting access.
+     * @return true if the user is allowed to log in, false otherwise.
+     * @throws IOException
+     */
+    private boolean isActiveAccount(User user) throws IOException {
+        // Check if the credentials are valid.
+        String temp = accountStore.getPassword(user.getUserName());
+        if (temp == null || !temp.equals(user.getUserPass())) {
+            return false;
+        }
+
+        // Whether the user is already logged in is checked by the session registry.
+        return true;
     }
-}
\ No newline at end of file
+}
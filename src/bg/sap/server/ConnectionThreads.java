@@ -0,0 +1,106 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.lang.reflect.Method;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine which serves every connection with plain blocking I/O on a reader and a writer thread of its own.
+ * The threads are virtual where the runtime has them (Java 21 and later), elsewhere they are platform threads
+ * with a small stack. A single timer thread ticks the timer wheel of all connections.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ConnectionThreads implements Runnable {
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private ChatServer server;
+    private ExecutorService executor;
+    private TimerWheel timerWheel;
+
+    public ConnectionThreads(ChatServer server) {
+        this.server = server;
+        this.executor = newExecutor();
+        this.timerWheel = new TimerWheel(Constants.TIMER_TICK, Constants.TIMER_SLOTS);
+    }
+
+    /**
+     * Start the timer thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "ConnectionTimer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tick the timer wheel, the expired watchdogs run on this thread.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(timerWheel.getTickMillis());
+            }
+            catch (InterruptedException exception) {
+                return;
+            }
+
+            timerWheel.tick();
+        }
+    }
+
+    /**
+     * Start serving an accepted connection.
+     * @param socketChannel the accepted channel, in blocking mode.
+     */
+    public void start(SocketChannel socketChannel) {
+        final BlockingSession session = new BlockingSession(socketChannel, server);
+        new SessionWatchdog(session, timerWheel).start();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                server.serve(session);
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.writeLoop();
+            }
+        });
+    }
+
+    /**
+     * Create the executor with a new virtual thread per task, or with platform threads if the runtime has no
+     * virtual threads. The server is built for Java 8, so the virtual thread executor is looked up by name.
+     * @return the executor.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+
+            System.out.println("Serving connections on virtual threads.");
+
+            return executor;
+        }
+        catch (ReflectiveOperationException exception) {
+            System.out.println("Virtual threads are not available, serving connections on platform threads.");
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(null, runnable, "Connection-" + count.getAndIncrement(), STACK_SIZE);
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package bg.sap.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for the file system work of the server: creating, opening, forcing, moving and closing files and
+ * the inboxes, writing uploads and reading downloads which are not cached. A reactor hands the work over
+ * and gets the outcome back through its task queue, so it only ever does socket I/O and a slow disk never
+ * stalls the chat.
+ *
+ * Work with the same key, e.g. the path of a file or the name of an inbox, runs in order on the same thread.
+ * Requests of the clients are refused once too many of them wait, work which completes an accepted request
+ * is always taken.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class DiskExecutor {
+    private ExecutorService[] lanes;
+    private int queueSize;
+    private AtomicInteger pending;
+
+    /**
+     * @param threads the number of threads.
+     * @param queueSize the number of requests which may wait.
+     */
+    public DiskExecutor(int threads, int queueSize) {
+        this.lanes = new ExecutorService[Math.max(1, threads)];
+        this.queueSize = queueSize;
+        this.pending = new AtomicInteger();
+
+        for (int i = 0; i < lanes.length; i++) {
+            final String name = "Disk-" + i;
+
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Run a request of a client.
+     * @param key the key of the file or the inbox.
+     * @param task the work.
+     * @throws IOException if too many requests wait.
+     */
+    public void submit(Object key, final Runnable task) throws IOException {
+        if (pending.incrementAndGet() > queueSize) {
+            pending.decrementAndGet();
+            throw new IOException("Too many file operations are waiting");
+        }
+
+        execute(key, new Runnable() {
+            @Override
+            public void run() {
+                pending.decrementAndGet();
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Run work which must not be dropped, e.g. the completion of an upload.
+     * @param key the key of the file or the inbox.
+     * @param task the work.
+     */
+    public void execute(Object key, Runnable task) {
+        lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].execute(task);
+    }
+}
@@ -0,0 +1,41 @@
+package bg.sap.server;
+
+import java.io.IOException;
+
+/**
+ * File system work of a session, which runs on a thread of the disk executor. The outcome is handled on the
+ * thread of the session, in order with its messages.
+ * @Created by Terrax on 18.10.2026.
+ */
+public abstract class DiskTask<T> {
+    /**
+     * Do the work. Called on a disk thread.
+     * @return the outcome.
+     * @throws IOException
+     */
+    public abstract T call() throws IOException;
+
+    /**
+     * Handle the outcome. Called on the thread of the session.
+     * @param result the outcome.
+     * @throws IOException
+     */
+    public abstract void completed(T result) throws IOException;
+
+    /**
+     * Handle the failure of the work. Called on the thread of the session, the session is closed by default.
+     * @param exception the failure.
+     * @throws IOException
+     */
+    public void failed(IOException exception) throws IOException {
+        throw exception;
+    }
+
+    /**
+     * Give up the outcome because the session has been closed meanwhile, e.g. close an opened file. Called on
+     * a disk thread.
+     * @param result the outcome.
+     */
+    public void discard(T result) {
+    }
+}
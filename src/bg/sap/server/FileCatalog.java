@@ -0,0 +1,198 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index of the files stored on the server, sorted by name. It is built once at startup and kept
+ * current by completed uploads and by a watcher thread which follows changes made to the directory.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileCatalog implements Runnable {
+    private Path dir;
+    private ConcurrentNavigableMap<String, FileEntry> entries;
+    private WatchService watchService;
+    private Thread thread;
+
+    public FileCatalog(File dir) {
+        this.dir = dir.toPath();
+        this.entries = new ConcurrentSkipListMap<String, FileEntry>();
+    }
+
+    /**
+     * Scan the directory and start watching it for changes.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            System.out.println("File directory " + dir + " does not exist, the file list is empty.");
+            return;
+        }
+
+        // Register first, so no change between the scan and the watch is lost.
+        watchService = dir.getFileSystem().newWatchService();
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        scan();
+
+        thread = new Thread(this, "FileCatalog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the directory.
+     * @throws IOException
+     */
+    public void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public FileEntry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Record the current state of a file, e.g. once an upload has been completed.
+     * @param file the file which has been created, changed or deleted.
+     */
+    public void update(File file) {
+        update(file.toPath());
+    }
+
+    /**
+     * List the files whose names start with a prefix, in the order of their names.
+     * @param prefix the prefix of the names, empty for all files.
+     * @param after the name of the last file of the previous page, empty for the first page.
+     * @param limit the maximal number of files.
+     * @return up to limit files followed by one more if there are further files.
+     */
+    public List<FileEntry> list(String prefix, String after, int limit) {
+        ConcurrentNavigableMap<String, FileEntry> view = after.compareTo(prefix) >= 0
+                ? entries.tailMap(after, false)
+                : entries.tailMap(prefix, true);
+
+        List<FileEntry> page = new ArrayList<FileEntry>(Math.min(limit, entries.size()) + 1);
+
+        for (FileEntry entry : view.values()) {
+            // Names with the prefix are adjacent, the first name without it ends the listing.
+            if (!entry.getName().startsWith(prefix) || page.size() > limit) {
+                break;
+            }
+            page.add(entry);
+        }
+
+        return page;
+    }
+
+    /**
+     * Apply the changes reported for the directory until the watch service is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    // Events have been lost, the directory has to be read again.
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scan();
+                    }
+                    else {
+                        update(dir.resolve((Path) event.context()));
+                    }
+                }
+
+                if (!key.reset()) {
+                    System.out.println("File directory " + dir + " is no longer watched.");
+                    return;
+                }
+            }
+        }
+        catch (ClosedWatchServiceException exception) {
+            // The catalog has been stopped.
+        }
+        catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the whole directory and drop the files which no longer exist.
+     * @throws IOException
+     */
+    private void scan() throws IOException {
+        Set<String> found = new HashSet<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+
+        try {
+            for (Path path : stream) {
+                update(path);
+                found.add(path.getFileName().toString());
+            }
+        }
+        finally {
+            stream.close();
+        }
+
+        entries.keySet().retainAll(found);
+    }
+
+    /**
+     * Record the current state of a single file. Partial files of running uploads are not listed.
+     * @param path the path of the file.
+     */
+    private void update(Path path) {
+        String name = path.getFileName().toString();
+
+        if (name.endsWith(Constants.PARTIAL_SUFFIX)) {
+            return;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            if (attributes.isRegularFile()) {
+                entries.put(name, new FileEntry(name, attributes.size(), attributes.lastModifiedTime().toMillis()));
+            }
+            else {
+                entries.remove(name);
+            }
+        }
+        catch (NoSuchFileException exception) {
+            entries.remove(name);
+        }
+        catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+}
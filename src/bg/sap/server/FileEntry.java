@@ -0,0 +1,29 @@
+package bg.sap.server;
+
+/**
+ * A file stored on the server as it is listed to the clients.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileEntry {
+    private String name;
+    private long size;
+    private long lastModified;
+
+    public FileEntry(String name, long size, long lastModified) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,35 @@
+package bg.sap.server;
+
+/**
+ * A chat message kept in the history.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class HistoryEntry {
+    private long sequence;
+    private long time;
+    private String sender;
+    private String text;
+
+    public HistoryEntry(long sequence, long time, String sender, String text) {
+        this.sequence = sequence;
+        this.time = time;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
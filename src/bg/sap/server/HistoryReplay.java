@@ -0,0 +1,62 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.Message;
+import bg.sap.utils.Protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replay of the chat history up to the message which was the latest when the replay was requested.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class HistoryReplay implements MessageStream {
+    private ChatHistory history;
+    private long cursor;
+    private long end;
+    private List<HistoryEntry> entries;
+
+    /**
+     * @param history the history.
+     * @param afterSequence the sequence number of the last message which the client already has.
+     */
+    public HistoryReplay(ChatHistory history, long afterSequence) {
+        this.history = history;
+        this.end = history.getLastSequence();
+        this.cursor = Math.max(0, Math.min(afterSequence, end));
+        this.entries = new ArrayList<HistoryEntry>();
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public boolean next(Session session) throws IOException {
+        long read = history.read(cursor, end, Constants.HISTORY_BATCH_SIZE, entries);
+
+        for (HistoryEntry entry : entries) {
+            session.send(new Message(Protocol.HISTORY_ENTRY, entry.getSequence(), entry.getTime(),
+                    entry.getSender(), entry.getText()));
+        }
+        entries.clear();
+
+        // Nothing more can be read if the rest has been dropped from the history.
+        if (read >= end || read == cursor) {
+            session.send(new Message(Protocol.HISTORY_END, read));
+            return true;
+        }
+
+        cursor = read;
+
+        return false;
+    }
+
+    @Override
+    public void close() {
+        // The entries are read from the mapped segments, nothing is held between the batches.
+    }
+}
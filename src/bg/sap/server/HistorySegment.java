@@ -0,0 +1,280 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory mapped file of the chat history which holds consecutive messages.
+ *
+ * A record is a 4 byte length followed by the sequence number, the time, the sender and the text. The length
+ * is written after the rest of the record, so a record with a zero length marks the end of the segment. Only
+ * the writer thread of the history appends, readers see the records up to the published last sequence.
+ *
+ * The history holds a reference to the segment and every reader holds one while it reads, the file is
+ * deleted once the history has dropped the segment and the last reader has released it.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class HistorySegment {
+    private static final Charset UTF_8 = Charset.forName(Constants.UTF_ENCODING);
+
+    // Every how many records the position is indexed.
+    private static final int INDEX_INTERVAL = 64;
+
+    private File file;
+    private long firstSequence;
+    private MappedByteBuffer buffer;
+    private ByteBuffer writeBuffer;
+
+    private volatile long lastSequence;
+    private volatile int[] index;
+
+    // The reference of the history and those of the readers.
+    private AtomicInteger references;
+
+    private HistorySegment(File file, long firstSequence, MappedByteBuffer buffer) {
+        this.file = file;
+        this.firstSequence = firstSequence;
+        this.buffer = buffer;
+        this.writeBuffer = buffer.duplicate();
+        this.lastSequence = firstSequence - 1;
+        this.index = new int[16];
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Create an empty segment.
+     * @param dir the directory of the history.
+     * @param firstSequence the sequence number of the first message of the segment.
+     * @return the segment.
+     * @throws IOException
+     */
+    public static HistorySegment create(File dir, long firstSequence) throws IOException {
+        File file = new File(dir, String.format("%020d.log", firstSequence));
+
+        return new HistorySegment(file, firstSequence, map(file, StandardOpenOption.CREATE_NEW));
+    }
+
+    /**
+     * Open a segment which has been written before and find its end.
+     * @param file the file of the segment.
+     * @return the segment.
+     * @throws IOException if the name of the file is no sequence number.
+     */
+    public static HistorySegment open(File file) throws IOException {
+        String name = file.getName();
+        long firstSequence;
+
+        try {
+            firstSequence = Long.parseLong(name.substring(0, name.indexOf('.')));
+        }
+        catch (RuntimeException exception) {
+            throw new IOException("Invalid history segment " + name, exception);
+        }
+
+        HistorySegment segment = new HistorySegment(file, firstSequence, map(file, StandardOpenOption.READ));
+        segment.recover();
+
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, StandardOpenOption option) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), option, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // The mapping stays valid after the channel has been closed.
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, Constants.HISTORY_SEGMENT_SIZE);
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean isEmpty() {
+        return lastSequence < firstSequence;
+    }
+
+    /**
+     * Append a message. Called by the writer thread.
+     * @param entry the message.
+     * @return false if the segment is full.
+     */
+    public boolean append(HistoryEntry entry) {
+        byte[] sender = entry.getSender().getBytes(UTF_8);
+        byte[] text = entry.getText().getBytes(UTF_8);
+        int start = writeBuffer.position();
+        int length = 8 + 8 + 2 + sender.length + 2 + text.length;
+
+        // Keep room for the zero length which ends the segment.
+        if (start + 4 + length + 4 > writeBuffer.capacity()) {
+            return false;
+        }
+
+        writeBuffer.position(start + 4);
+        writeBuffer.putLong(entry.getSequence());
+        writeBuffer.putLong(entry.getTime());
+        writeBuffer.putShort((short) sender.length).put(sender);
+        writeBuffer.putShort((short) text.length).put(text);
+        writeBuffer.putInt(start, length);
+
+        addToIndex(entry.getSequence(), start);
+        lastSequence = entry.getSequence();
+
+        return true;
+    }
+
+    /**
+     * Read the messages which follow a sequence number.
+     * @param afterSequence the sequence number of the last message which is not wanted.
+     * @param toSequence the sequence number of the last wanted message.
+     * @param maxBytes the size of the text after which reading stops.
+     * @param entries the list which receives the messages.
+     * @return the sequence number of the last message read or afterSequence if there was none.
+     */
+    public long read(long afterSequence, long toSequence, int maxBytes, List<HistoryEntry> entries) {
+        long last = Math.min(lastSequence, toSequence);
+        long sequence = Math.max(afterSequence + 1, firstSequence);
+
+        if (sequence > last) {
+            return afterSequence;
+        }
+
+        // Start at the indexed record before the first wanted one.
+        int slot = (int) ((sequence - firstSequence) / INDEX_INTERVAL);
+        ByteBuffer view = buffer.duplicate();
+        view.position(index[slot]);
+
+        int bytes = 0;
+        long read = afterSequence;
+
+        while (read < last && bytes < maxBytes) {
+            int length = view.getInt();
+            int next = view.position() + length;
+            long recordSequence = view.getLong();
+
+            if (recordSequence >= sequence) {
+                long time = view.getLong();
+                String sender = readString(view);
+                String text = readString(view);
+
+                entries.add(new HistoryEntry(recordSequence, time, sender, text));
+                bytes += length;
+                read = recordSequence;
+            }
+
+            view.position(next);
+        }
+
+        return read;
+    }
+
+    /**
+     * Write the changed pages to the disk.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Take a reference before reading the segment.
+     * @return false if the segment has been dropped and must not be read.
+     */
+    public boolean retain() {
+        for (int count; (count = references.get()) > 0; ) {
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Give up a reference. The file is deleted with the last one.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            delete();
+        }
+    }
+
+    /**
+     * Delete the file of the segment. The file stays mapped until the segment is collected.
+     */
+    private void delete() {
+        if (!file.delete()) {
+            System.out.println("Could not delete history segment " + file.getName());
+        }
+    }
+
+    /**
+     * Find the end of a segment which has been written before.
+     */
+    private void recover() {
+        int position = 0;
+
+        while (position + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+
+            if (length <= 0 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+
+            long sequence = buffer.getLong(position + 4);
+            if (sequence != lastSequence + 1) {
+                break;
+            }
+
+            addToIndex(sequence, position);
+            lastSequence = sequence;
+            position += 4 + length;
+        }
+
+        writeBuffer.position(position);
+    }
+
+    private void addToIndex(long sequence, int position) {
+        long offset = sequence - firstSequence;
+
+        if (offset % INDEX_INTERVAL == 0) {
+            int slot = (int) (offset / INDEX_INTERVAL);
+            int[] current = index;
+
+            if (slot == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[slot] = position;
+
+            // Publish the array before the record, readers read the last sequence first.
+            index = current;
+        }
+    }
+
+    private static String readString(ByteBuffer view) {
+        byte[] bytes = new byte[view.getShort() & 0xFFFF];
+        view.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+}
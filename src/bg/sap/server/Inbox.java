@@ -0,0 +1,273 @@
+package bg.sap.server;
+
+import bg.sap.utils.BufferPool;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Messages kept for a user who is offline. The file holds the messages as binary frames, appended in the
+ * order of arrival, and is deleted once the user has received all of them.
+ *
+ * The position up to which the messages have been handed out is kept in a file beside the inbox and stored
+ * before they are sent, so a user who disconnects while the inbox is read does not get them again.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class Inbox {
+    private File file;
+    private File offsetFile;
+
+    // Number of messages in the file, counted when the inbox is used for the first time.
+    private int count;
+
+    // Position of the first message which has not been handed out, loaded when the inbox is read.
+    private long offset;
+
+    public Inbox(File file) {
+        this.file = file;
+        this.offsetFile = new File(file.getPath() + ".offset");
+        this.count = -1;
+        this.offset = -1;
+    }
+
+    public boolean isEmpty() {
+        return !file.exists();
+    }
+
+    /**
+     * Append a message unless the inbox is full.
+     * @param frame the message as a binary frame.
+     * @param limit the maximal number of messages in the inbox.
+     * @return false if the inbox is full.
+     * @throws IOException
+     */
+    public synchronized boolean append(ByteBuffer frame, int limit) throws IOException {
+        if (count < 0) {
+            count = recover();
+        }
+
+        if (count >= limit) {
+            return false;
+        }
+
+        // An offset without its inbox is left by a crash while the inbox was deleted.
+        if (!file.exists() && offsetFile.exists() && !offsetFile.delete()) {
+            throw new IOException("Could not delete inbox offset " + offsetFile.getName());
+        }
+        offset = file.exists() ? offset : 0;
+
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            ByteBuffer buffer = frame.duplicate();
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+        }
+        finally {
+            fileChannel.close();
+        }
+
+        count++;
+
+        return true;
+    }
+
+    /**
+     * Read the messages which have not been handed out yet and store that they have been. When there are none
+     * left the inbox is deleted, messages which arrive while the inbox is read are read as well.
+     * @param maxBytes the size after which reading stops.
+     * @param frames the list which receives the messages as binary frames, which must be released.
+     * @return the number of bytes read.
+     * @throws IOException
+     */
+    public synchronized int read(int maxBytes, List<PooledBuffer> frames) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        if (offset < 0) {
+            offset = loadOffset();
+        }
+        long position = offset;
+
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        PooledBuffer pooled;
+        try {
+            // An offset behind the end is left by a crash which cut off an incomplete frame.
+            long available = Math.max(0, fileChannel.size() - position);
+            long first = 0;
+            if (available >= Protocol.LENGTH_SIZE) {
+                first = Protocol.LENGTH_SIZE + readLength(fileChannel, position);
+            }
+
+            // Read at least the next frame whole, whatever its size and the batch size.
+            pooled = BufferPool.getDefault().acquire((int) Math.min(available, Math.max(maxBytes, first)));
+            ByteBuffer buffer = pooled.getBuffer();
+            try {
+                while (buffer.hasRemaining() && fileChannel.read(buffer, position + buffer.position()) > 0) {
+                    // Keep reading until the buffer is full.
+                }
+            }
+            catch (IOException exception) {
+                pooled.release();
+                throw exception;
+            }
+            buffer.flip();
+        }
+        finally {
+            fileChannel.close();
+        }
+
+        // Every frame is a view which holds a reference of the buffer.
+        ByteBuffer buffer = pooled.getBuffer();
+        int read = 0;
+        while (read < maxBytes && buffer.remaining() >= Protocol.LENGTH_SIZE) {
+            int length = buffer.getInt(buffer.position());
+
+            if (buffer.remaining() < Protocol.LENGTH_SIZE + length) {
+                break;
+            }
+
+            PooledBuffer frame = pooled.duplicate();
+            frame.getBuffer().limit(buffer.position() + Protocol.LENGTH_SIZE + length);
+            frames.add(frame);
+
+            buffer.position(buffer.position() + Protocol.LENGTH_SIZE + length);
+            read += Protocol.LENGTH_SIZE + length;
+        }
+        pooled.release();
+
+        // Everything has been read. The buffer holds the next frame whole, so a frame which is not complete
+        // reaches beyond the end of the file, a crash has left it and it is dropped with the file. The inbox
+        // goes first, a new inbox drops an offset which a crash has left behind.
+        if (read == 0) {
+            if (!file.delete()) {
+                throw new IOException("Could not delete inbox " + file.getName());
+            }
+            if (offsetFile.exists() && !offsetFile.delete()) {
+                throw new IOException("Could not delete inbox offset " + offsetFile.getName());
+            }
+            count = 0;
+            offset = 0;
+
+            return 0;
+        }
+
+        // The frames stay with the caller, which releases them if storing fails.
+        storeOffset(position + read);
+        offset = position + read;
+
+        return read;
+    }
+
+    /**
+     * Read the length field of a frame.
+     * @param fileChannel the file.
+     * @param position the position of the frame.
+     * @return the length of the frame without the length field, 0 if the field is not complete.
+     * @throws IOException
+     */
+    private static int readLength(FileChannel fileChannel, long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Protocol.LENGTH_SIZE);
+
+        while (length.hasRemaining() && fileChannel.read(length, position + length.position()) > 0) {
+            // Keep reading until the field is complete.
+        }
+
+        return length.hasRemaining() ? 0 : Math.max(0, length.getInt(0));
+    }
+
+    /**
+     * Read the position of the first message which has not been handed out.
+     * @return the position, 0 if the messages of the inbox have not been read yet.
+     * @throws IOException
+     */
+    private long loadOffset() throws IOException {
+        if (!offsetFile.exists()) {
+            return 0;
+        }
+
+        FileChannel fileChannel = FileChannel.open(offsetFile.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            while (buffer.hasRemaining() && fileChannel.read(buffer, buffer.position()) > 0) {
+                // Keep reading until the offset is complete.
+            }
+
+            return buffer.hasRemaining() ? 0 : buffer.getLong(0);
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Store the position of the first message which has not been handed out and force it to the disk.
+     * @param position the position.
+     * @throws IOException
+     */
+    private void storeOffset(long position) throws IOException {
+        FileChannel fileChannel = FileChannel.open(offsetFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(0, position);
+
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, buffer.position());
+            }
+            fileChannel.force(false);
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Count the messages in the file and cut off an incomplete frame which a crash during an append left.
+     * @return the number of messages.
+     * @throws IOException
+     */
+    private int recover() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer length = ByteBuffer.allocate(Protocol.LENGTH_SIZE);
+            long size = fileChannel.size();
+            long position = 0;
+            int messages = 0;
+
+            while (position + Protocol.LENGTH_SIZE <= size) {
+                length.clear();
+                fileChannel.read(length, position);
+
+                long next = position + Protocol.LENGTH_SIZE + length.getInt(0);
+                if (next > size) {
+                    break;
+                }
+
+                position = next;
+                messages++;
+            }
+
+            if (position < size) {
+                fileChannel.truncate(position);
+            }
+
+            return messages;
+        }
+        finally {
+            fileChannel.close();
+        }
+    }
+}
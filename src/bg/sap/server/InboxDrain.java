@@ -0,0 +1,170 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delivery of the messages in the inbox of a user who has logged in, a batch at a time. The batches are read
+ * by the disk executor, the next one while the previous one is written. A message is delivered at most once,
+ * the batches of a user who disconnects meanwhile are lost.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class InboxDrain implements MessageStream {
+    private Inbox inbox;
+    private DiskExecutor diskExecutor;
+    private String userName;
+
+    // The batch which has been read, null while it is being read.
+    private List<PooledBuffer> frames;
+    private boolean reading;
+    private boolean closed;
+
+    /**
+     * @param inbox the inbox of the user.
+     * @param diskExecutor the executor which reads the inbox.
+     * @param userName the name of the user, which orders the reads with the deliveries to the inbox.
+     */
+    public InboxDrain(Inbox inbox, DiskExecutor diskExecutor, String userName) {
+        this.inbox = inbox;
+        this.diskExecutor = diskExecutor;
+        this.userName = userName;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+        return frames != null;
+    }
+
+    /**
+     * Read the first batch before the session asks for it.
+     * @param session the session which receives the messages.
+     */
+    public synchronized void start(Session session) {
+        read(session);
+    }
+
+    @Override
+    public boolean next(Session session) throws IOException {
+        List<PooledBuffer> batch;
+
+        synchronized (this) {
+            batch = frames;
+            frames = null;
+        }
+
+        // Nothing is left, the inbox has been deleted.
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        synchronized (this) {
+            read(session);
+        }
+
+        int sent = 0;
+        try {
+            for (; sent < batch.size(); sent++) {
+                PooledBuffer frame = batch.get(sent);
+
+                // The frames are stored in the binary protocol, old clients get them translated.
+                if (session.isBinary()) {
+                    session.sendEncoded(frame);
+                }
+                else {
+                    try {
+                        ByteBuffer buffer = frame.getBuffer();
+                        int offset = buffer.position() + Protocol.LENGTH_SIZE;
+                        session.send(Protocol.decode(buffer, offset, buffer.limit() - offset));
+                    }
+                    finally {
+                        frame.release();
+                    }
+                }
+            }
+        }
+        finally {
+            // The frame which failed has been released, the ones behind it have not been handed over.
+            release(batch, sent + 1);
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+
+        if (frames != null) {
+            release(frames, 0);
+            frames = null;
+        }
+    }
+
+    /**
+     * Read the next batch on the disk executor. The session is flushed once it has been read.
+     * @param session the session which receives the messages.
+     */
+    private void read(final Session session) {
+        if (reading || closed) {
+            return;
+        }
+
+        reading = true;
+        diskExecutor.execute(userName, new Runnable() {
+            @Override
+            public void run() {
+                List<PooledBuffer> batch = new ArrayList<PooledBuffer>();
+
+                try {
+                    // The inbox stores that the batch has been handed out, it is not sent again.
+                    inbox.read(Constants.HISTORY_BATCH_SIZE, batch);
+                }
+                catch (IOException exception) {
+                    // The messages which have not been handed out stay on the disk for the next login.
+                    exception.printStackTrace();
+                    release(batch, 0);
+                    batch.clear();
+                }
+
+                handOver(batch, session);
+            }
+        });
+    }
+
+    /**
+     * Hand a batch which has been read over to the session. Called on the disk thread.
+     * @param batch the frames.
+     * @param session the session which receives the messages.
+     */
+    private void handOver(List<PooledBuffer> batch, Session session) {
+        synchronized (this) {
+            reading = false;
+
+            if (closed) {
+                release(batch, 0);
+                return;
+            }
+
+            frames = batch;
+        }
+
+        try {
+            session.streamReady();
+        }
+        catch (IOException exception) {
+            // The session is closed, which closes the stream.
+        }
+    }
+
+    private static void release(List<PooledBuffer> batch, int from) {
+        for (int i = from; i < batch.size(); i++) {
+            batch.get(i).release();
+        }
+    }
+}
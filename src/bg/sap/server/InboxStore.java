@@ -0,0 +1,83 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Inboxes of the users, one file per user in the inbox directory.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class InboxStore {
+    private static final Charset UTF_8 = Charset.forName(Constants.UTF_ENCODING);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private File dir;
+    private ConcurrentMap<String, Inbox> inboxes;
+
+    public InboxStore(File dir) {
+        this.dir = dir;
+        this.inboxes = new ConcurrentHashMap<String, Inbox>();
+    }
+
+    /**
+     * Create the directory of the inboxes.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create inbox directory " + dir);
+        }
+    }
+
+    /**
+     * Get the inbox of a user.
+     * @param userName the name of the user.
+     * @return the inbox, which may be empty.
+     */
+    public Inbox get(String userName) {
+        Inbox inbox = inboxes.get(userName);
+
+        if (inbox == null) {
+            Inbox created = new Inbox(new File(dir, fileName(userName)));
+            inbox = inboxes.putIfAbsent(userName, created);
+            if (inbox == null) {
+                inbox = created;
+            }
+        }
+
+        return inbox;
+    }
+
+    /**
+     * Keep a message for a user who is offline.
+     * @param userName the name of the user.
+     * @param frame the message as a binary frame.
+     * @return false if the inbox of the user is full.
+     * @throws IOException
+     */
+    public boolean deliver(String userName, ByteBuffer frame) throws IOException {
+        return get(userName).append(frame, Constants.INBOX_LIMIT);
+    }
+
+    /**
+     * Name the file of an inbox by the hex digits of the user name, so any user name makes a valid file name.
+     * @param userName the name of the user.
+     * @return the name of the file.
+     */
+    private static String fileName(String userName) {
+        byte[] bytes = userName.getBytes(UTF_8);
+        StringBuilder name = new StringBuilder(bytes.length * 2 + 6);
+
+        for (byte b : bytes) {
+            name.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+
+        return name.append(".inbox").toString();
+    }
+}
@@ -0,0 +1,23 @@
+package bg.sap.server;
+
+/**
+ * Management interface of a latency histogram. The latencies are in microseconds.
+ * @Created by Terrax on 18.10.2026.
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long get50thPercentile();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+
+    void reset();
+}
@@ -0,0 +1,30 @@
+package bg.sap.server;
+
+import java.io.IOException;
+
+/**
+ * Source of a long series of messages for a session, e.g. a replay. The session pulls the next batch whenever
+ * it has written the previous one, so a slow client never has more than a batch queued.
+ * @Created by Terrax on 18.10.2026.
+ */
+public interface MessageStream {
+    /**
+     * Check whether the next batch can be queued. A stream which waits for its data calls Session.streamReady()
+     * once the data has arrived.
+     * @return false while the stream waits for its data.
+     */
+    boolean isReady();
+
+    /**
+     * Queue the next batch of messages. Called by the reactor of the session once the stream is ready.
+     * @param session the session which receives the messages.
+     * @return true if the stream is finished, false if more batches follow.
+     * @throws IOException
+     */
+    boolean next(Session session) throws IOException;
+
+    /**
+     * Give up the stream because the session has been closed before it was finished.
+     */
+    void close();
+}
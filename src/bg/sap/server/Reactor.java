@@ -0,0 +1,238 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @Created by Terrax on 18.10.2026.
+ */
+public class Reactor implements Runnable {
+    private ChatServer server;
+    private String name;
+    private Selector selector;
+    private Thread thread;
+
+    // Work handed over by other threads, executed by the reactor thread.
+    private Queue<Runnable> tasks;
+    private Queue<ReactorSession> pendingFlushes;
+    private AtomicBoolean wakeupPending;
+
+    // Timeouts of the sessions, ticked by the select loop.
+    private TimerWheel timerWheel;
+
+    // Buffers of a gathering write, shared by the sessions of the reactor.
+    private ByteBuffer[] writeBatch;
+
+    // Sessions with data which the pass has queued, written together at the end of the pass.
+    private List<ReactorSession> unflushed;
+
+    public Reactor(ChatServer server, String name) throws IOException {
+        this.server = server;
+        this.name = name;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.pendingFlushes = new ConcurrentLinkedQueue<ReactorSession>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.timerWheel = new TimerWheel(Constants.TIMER_TICK, Constants.TIMER_SLOTS);
+        this.writeBatch = new ByteBuffer[Constants.WRITE_BATCH_BUFFERS];
+        this.unflushed = new ArrayList<ReactorSession>();
+    }
+
+    /**
+     * Start the thread of the reactor.
+     */
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Check if the caller runs on the thread of the reactor.
+     * @return true if the current thread is the reactor thread, false otherwise.
+     */
+    public boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Hand over a newly accepted channel to the reactor.
+     * @param socketChannel the accepted channel.
+     */
+    public void register(final SocketChannel socketChannel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socketChannel.configureBlocking(false);
+
+                    SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+                    ReactorSession session = new ReactorSession(key, Reactor.this);
+                    key.attach(session);
+
+                    new SessionWatchdog(session, timerWheel).start();
+                }
+                catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run a task on the reactor thread.
+     * @param task the task to run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Ask the reactor to write the data which another thread queued for a connection.
+     * @param session the session with new data.
+     */
+    public void scheduleFlush(ReactorSession session) {
+        pendingFlushes.add(session);
+        wakeup();
+    }
+
+    public ChatServer getServer() {
+        return server;
+    }
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    ByteBuffer[] getWriteBatch() {
+        return writeBatch;
+    }
+
+    /**
+     * Write the data which the reactor has queued for a session at the end of the pass, so all messages of
+     * the pass go out with one write. Called by the reactor.
+     * @param session the session with new data.
+     */
+    void flushAtEndOfPass(ReactorSession session) {
+        unflushed.add(session);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // Wake up at least once per tick of the timer wheel.
+                selector.select(timerWheel.getTickMillis());
+                wakeupPending.set(false);
+
+                // Measure the work of the pass, not the wait for events.
+                long start = System.nanoTime();
+
+                runTasks();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    if (key.isValid()) {
+                        handleClient(key);
+                    }
+                }
+
+                timerWheel.tick();
+                flushUnflushed();
+
+                server.getMetrics().getSelectLoop().record(System.nanoTime() - start);
+            }
+            catch (IOException exception) {
+                exception.printStackTrace();
+            }
+            // The reactor serves many connections, it must survive a bug in the work of any of them.
+            catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handle the readiness of a client channel. A failure which is not an I/O error closes the connection,
+     * the other connections of the reactor go on.
+     * @param key the selection key of the client.
+     */
+    private void handleClient(SelectionKey key) {
+        try {
+            server.handleClient(key);
+        }
+        catch (RuntimeException exception) {
+            exception.printStackTrace();
+            server.disconnect((ReactorSession) key.attachment());
+        }
+    }
+
+    /**
+     * Execute the work handed over by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException exception) {
+                exception.printStackTrace();
+            }
+        }
+
+        ReactorSession session;
+        while ((session = pendingFlushes.poll()) != null) {
+            try {
+                session.flushScheduled();
+            }
+            catch (IOException exception) {
+                server.disconnect(session);
+            }
+        }
+    }
+
+    /**
+     * Write the data which the pass has queued.
+     */
+    private void flushUnflushed() {
+        for (int i = 0; i < unflushed.size(); i++) {
+            ReactorSession session = unflushed.get(i);
+
+            try {
+                session.flushUnflushed();
+            }
+            catch (IOException exception) {
+                server.disconnect(session);
+            }
+        }
+
+        unflushed.clear();
+    }
+
+    /**
+     * Wake the selector up, once per pass of the select loop.
+     */
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.OperationHandler;
+import bg.sap.utils.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Session of a non-blocking connection, attached to its selection key. Only the reactor which owns the
+ * connection reads and writes it.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ReactorSession extends Session {
+    private SelectionKey key;
+    private Reactor reactor;
+
+    private AtomicBoolean flushScheduled;
+    private boolean flushAtEndOfPass;
+    private boolean waitingForWrite;
+    private boolean flushing;
+    private volatile boolean closeAfterFlush;
+
+    // Reading stops while the disk executor works on a request of the session.
+    private boolean suspended;
+
+    // Streams of messages which are queued a batch at a time once the queue has been written, in order.
+    private Queue<MessageStream> streams;
+
+    // File which is being sent to the client after the queued data.
+    private FileChannelHelper download;
+
+    // Fragment of a download which is not cached, read by the disk executor.
+    private PooledBuffer fragment;
+    private boolean reading;
+
+    public ReactorSession(SelectionKey key, Reactor reactor) {
+        super((SocketChannel) key.channel(), reactor.getServer());
+        this.key = key;
+        this.reactor = reactor;
+        this.flushScheduled = new AtomicBoolean(false);
+        this.waitingForWrite = false;
+        this.closeAfterFlush = false;
+        this.streams = new ArrayDeque<MessageStream>();
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return key.isValid();
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Stop reading the connection until the disk executor has finished a request, so the messages behind it
+     * wait in the socket. Called by the reactor.
+     */
+    void suspendReading() {
+        suspended = true;
+        setInterest(SelectionKey.OP_READ, false);
+    }
+
+    /**
+     * Read the connection again. Called by the reactor.
+     */
+    void resumeReading() {
+        suspended = false;
+        setInterest(SelectionKey.OP_READ, true);
+    }
+
+    @Override
+    public boolean isDownloading() {
+        return download != null;
+    }
+
+    @Override
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Start sending a file to the client. The file is sent a fragment per writable event. Called by the reactor.
+     * @param fileChannelHelper the file to send.
+     * @throws IOException
+     */
+    @Override
+    public void startDownload(FileChannelHelper fileChannelHelper) throws IOException {
+        download = fileChannelHelper;
+        getMetrics().transferStarted();
+
+        if (!waitingForWrite) {
+            flush();
+        }
+    }
+
+    /**
+     * Start sending a stream of messages. Called by the reactor.
+     * @param stream the messages to send.
+     * @throws IOException
+     */
+    @Override
+    public void startStream(MessageStream stream) throws IOException {
+        streams.add(stream);
+
+        if (!waitingForWrite) {
+            flush();
+        }
+    }
+
+    /**
+     * Run a task on the reactor thread.
+     * @param task the task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        reactor.execute(task);
+    }
+
+    /**
+     * Close the connection once all queued data has been written. Called by the reactor.
+     * @throws IOException
+     */
+    @Override
+    public void closeAfterFlush() throws IOException {
+        closeAfterFlush = true;
+
+        if (getWriteQueue().isEmpty() && download == null && streams.isEmpty()) {
+            close();
+        }
+    }
+
+    /**
+     * On the reactor thread the queue is written at the end of the pass, together with everything else the
+     * pass queues for the client. Other threads leave the writing to the reactor which owns the connection.
+     * @throws IOException
+     */
+    @Override
+    protected void queued() throws IOException {
+        if (reactor.inReactorThread()) {
+            // If data is already waiting, the socket is full and OP_WRITE will drain the queue.
+            if (!waitingForWrite && !flushAtEndOfPass) {
+                flushAtEndOfPass = true;
+                reactor.flushAtEndOfPass(this);
+            }
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            reactor.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Write the data which the reactor has queued during the pass. Called by the reactor.
+     * @throws IOException
+     */
+    void flushUnflushed() throws IOException {
+        flushAtEndOfPass = false;
+
+        if (key.isValid() && !waitingForWrite) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the data which other threads have queued. Called by the reactor.
+     * @throws IOException
+     */
+    void flushScheduled() throws IOException {
+        flushScheduled.set(false);
+
+        if (key.isValid() && !waitingForWrite) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the queued data until the queue is empty or the socket is full, then continue the stream or the
+     * download. Called by the reactor.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        // A stream sends its batch while the queue is being flushed, the running pass writes it.
+        if (flushing) {
+            return;
+        }
+
+        flushing = true;
+        try {
+            write();
+        }
+        finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * Write the queue, the next batch of the stream, the chunks of the file streams and the next fragment of
+     * the download. The queued messages go out with gathering writes of up to the pass limit, a chunk is only
+     * taken once they have been written.
+     * @throws IOException
+     */
+    private void write() throws IOException {
+        Queue<PooledBuffer> writeQueue = getWriteQueue();
+        long start = getBytesSent();
+        boolean streamed = false;
+
+        while (true) {
+            while (!writeQueue.isEmpty()) {
+                long left = Constants.WRITE_PASS_BYTES - (getBytesSent() - start);
+
+                // The pass has written its share, the rest goes out after the other connections had their turn.
+                // The same happens when the socket is full, until it is writable again.
+                if (left <= 0 || !writeQueued(reactor.getWriteBatch(), left)) {
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+
+            MessageStream stream = streams.peek();
+
+            // A stream which waits for its data flushes the session again once it has arrived, the file
+            // streams go on meanwhile.
+            if (stream != null && stream.isReady()) {
+                // Queue one batch of the stream per pass, so other connections get their turn.
+                if (streamed) {
+                    setWriteInterest(true);
+                    return;
+                }
+
+                if (stream.next(this)) {
+                    streams.poll();
+                }
+                streamed = true;
+                continue;
+            }
+
+            // The file streams go on until the pass has written its share or their windows are used up.
+            if (!sendChunk()) {
+                break;
+            }
+        }
+
+        if (!streams.isEmpty()) {
+            setWriteInterest(false);
+            return;
+        }
+
+        if (download != null) {
+            if (!sendDownload()) {
+                return;
+            }
+
+            download = null;
+            getMetrics().transferEnded();
+            closeAfterFlush = true;
+        }
+
+        setWriteInterest(false);
+
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    /**
+     * Send the next fragment of the download, one per pass so other connections get their turn. A cached file
+     * is written from its mapping, the fragments of other files are read by the disk executor and written once
+     * they are there.
+     * @return true if the whole file has been sent.
+     * @throws IOException
+     */
+    private boolean sendDownload() throws IOException {
+        if (download.getMappedFile() != null) {
+            long sent = OperationHandler.sendFile(getSocketChannel(), download);
+            sent(sent);
+            getMetrics().fileSent(sent);
+
+            if (!download.isComplete()) {
+                setWriteInterest(true);
+                return false;
+            }
+            return true;
+        }
+
+        if (fragment != null) {
+            long sent = getSocketChannel().write(fragment.getBuffer());
+            sent(sent);
+            getMetrics().fileSent(sent);
+
+            if (fragment.getBuffer().hasRemaining()) {
+                setWriteInterest(true);
+                return false;
+            }
+
+            fragment.release();
+            fragment = null;
+        }
+
+        if (download.isComplete()) {
+            return true;
+        }
+
+        if (!reading) {
+            reading = true;
+            getServer().readDownload(this, download);
+        }
+        setWriteInterest(false);
+        return false;
+    }
+
+    /**
+     * Take a fragment of the download which the disk executor has read and write it. Called by the reactor.
+     * @param file the download which the fragment belongs to.
+     * @param fragment the fragment.
+     * @throws IOException
+     */
+    void downloadRead(FileChannelHelper file, PooledBuffer fragment) throws IOException {
+        reading = false;
+
+        // The connection has been closed meanwhile.
+        if (file != download || !key.isValid()) {
+            fragment.release();
+            return;
+        }
+
+        this.fragment = fragment;
+
+        if (!waitingForWrite) {
+            flush();
+        }
+    }
+
+    @Override
+    protected void closeChannel() throws IOException {
+        MessageStream stream;
+        while ((stream = streams.poll()) != null) {
+            stream.close();
+        }
+
+        if (download != null) {
+            download.close();
+            download = null;
+            getMetrics().transferEnded();
+        }
+
+        key.cancel();
+        getSocketChannel().close();
+
+        // The reactor may be decoding or writing the data of the connection, its buffers go back to the pool
+        // afterwards.
+        if (reactor.inReactorThread()) {
+            releaseBuffers();
+        }
+        else {
+            reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseBuffers();
+                }
+            });
+        }
+    }
+
+    /**
+     * Give the buffer of the decoder and the fragment of the download back to the pool. Called by the reactor.
+     */
+    private void releaseBuffers() {
+        getDecoder().release();
+
+        if (fragment != null) {
+            fragment.release();
+            fragment = null;
+        }
+    }
+
+    /**
+     * Register or clear the interest for OP_WRITE.
+     * @param enabled true if the connection waits for the socket to become writable.
+     */
+    private void setWriteInterest(boolean enabled) {
+        waitingForWrite = enabled;
+        setInterest(SelectionKey.OP_WRITE, enabled);
+    }
+
+    /**
+     * Register or clear an interest of the selection key.
+     * @param op the operation.
+     * @param enabled true to register the interest.
+     */
+    private void setInterest(int op, boolean enabled) {
+        if (!key.isValid()) return;
+
+        int ops = key.interestOps();
+        int newOps = enabled ? ops | op : ops & ~op;
+
+        if (newOps != ops) {
+            key.interestOps(newOps);
+        }
+    }
+}
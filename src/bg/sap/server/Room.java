@@ -0,0 +1,119 @@
+package bg.sap.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named room whose messages go only to its members. A member stays subscribed while offline and gets the
+ * messages of the room into its inbox until it leaves the room.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class Room {
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private String name;
+
+    // Sessions of the members which are online, and the names of all members and of those offline.
+    private Set<Session> members;
+    private Set<String> subscribers;
+    private Set<String> offline;
+
+    // Set when the last member has left, a closed room is replaced by a new one on the next join.
+    private boolean closed;
+
+    public Room(String name) {
+        this.name = name;
+        this.members = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+        this.subscribers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.offline = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Check if a name can be used for a room.
+     * @param name the name.
+     * @return true if the name is valid.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the online members to send a message to. Members may join and leave while the set is iterated.
+     * @return the sessions of the online members.
+     */
+    public Set<Session> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the members which are offline.
+     * @return the names of the offline members.
+     */
+    public Set<String> getOffline() {
+        return offline;
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    public boolean contains(Session session) {
+        return members.contains(session);
+    }
+
+    /**
+     * Add a member or bring a member online again.
+     * @param session the session of the member.
+     * @return false if the room has been closed.
+     */
+    synchronized boolean add(Session session) {
+        if (closed) {
+            return false;
+        }
+
+        subscribers.add(session.getUserName());
+        offline.remove(session.getUserName());
+        members.add(session);
+
+        return true;
+    }
+
+    /**
+     * Remove a member and close the room when it is empty.
+     * @param session the session of the member.
+     * @return true if the room has been closed.
+     */
+    synchronized boolean remove(Session session) {
+        members.remove(session);
+        subscribers.remove(session.getUserName());
+        offline.remove(session.getUserName());
+        closed = subscribers.isEmpty();
+
+        return closed;
+    }
+
+    /**
+     * Keep a member whose session has ended.
+     * @param session the session of the member.
+     */
+    synchronized void setOffline(Session session) {
+        if (members.remove(session)) {
+            offline.add(session.getUserName());
+        }
+    }
+}
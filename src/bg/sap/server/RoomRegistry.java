@@ -0,0 +1,153 @@
+package bg.sap.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of the rooms by name and of the rooms of every user. A room exists while it has members, online or not.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class RoomRegistry {
+    private ConcurrentNavigableMap<String, Room> rooms;
+    private ConcurrentMap<String, Set<String>> subscriptions;
+
+    public RoomRegistry() {
+        this.rooms = new ConcurrentSkipListMap<String, Room>();
+        this.subscriptions = new ConcurrentHashMap<String, Set<String>>();
+    }
+
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Add a session to a room, the room is created if it does not exist.
+     * @param name the name of the room.
+     * @param session the session of a logged in user.
+     * @return the room.
+     */
+    public Room join(String name, Session session) {
+        while (true) {
+            Room room = rooms.get(name);
+
+            if (room == null) {
+                Room created = new Room(name);
+                room = rooms.putIfAbsent(name, created);
+                if (room == null) {
+                    room = created;
+                }
+            }
+
+            if (room.add(session)) {
+                session.getRooms().add(name);
+                getSubscriptions(session.getUserName()).add(name);
+                return room;
+            }
+
+            // The last member has just left, replace the closed room.
+            rooms.remove(name, room);
+        }
+    }
+
+    /**
+     * Remove a session from a room, the room is removed when it is empty.
+     * @param name the name of the room.
+     * @param session the session.
+     * @return false if the session is not in the room.
+     */
+    public boolean leave(String name, Session session) {
+        if (!session.getRooms().remove(name)) {
+            return false;
+        }
+
+        Set<String> names = subscriptions.get(session.getUserName());
+        if (names != null) {
+            names.remove(name);
+        }
+
+        Room room = rooms.get(name);
+        if (room != null && room.remove(session)) {
+            rooms.remove(name, room);
+        }
+
+        return true;
+    }
+
+    /**
+     * Bring a user which has just logged in back into its rooms.
+     * @param session the session of the user.
+     * @return the rooms of the user.
+     */
+    public List<Room> login(Session session) {
+        Set<String> names = subscriptions.get(session.getUserName());
+        if (names == null) {
+            return Collections.emptyList();
+        }
+
+        List<Room> joined = new ArrayList<Room>(names.size());
+        for (String name : names) {
+            Room room = rooms.get(name);
+
+            if (room != null && room.add(session)) {
+                session.getRooms().add(name);
+                joined.add(room);
+            }
+        }
+
+        return joined;
+    }
+
+    /**
+     * Take a session out of its rooms, e.g. because it has been closed. The user stays a member.
+     * @param session the session.
+     */
+    public void logout(Session session) {
+        for (String name : session.getRooms()) {
+            Room room = rooms.get(name);
+
+            if (room != null) {
+                room.setOffline(session);
+            }
+        }
+
+        session.getRooms().clear();
+    }
+
+    /**
+     * List the rooms in the order of their names.
+     * @param limit the maximal number of rooms.
+     * @return the rooms.
+     */
+    public List<Room> list(int limit) {
+        List<Room> list = new ArrayList<Room>(Math.min(limit, rooms.size()));
+
+        for (Room room : rooms.values()) {
+            if (list.size() == limit) {
+                break;
+            }
+            list.add(room);
+        }
+
+        return list;
+    }
+
+    private Set<String> getSubscriptions(String userName) {
+        Set<String> names = subscriptions.get(userName);
+
+        if (names == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            names = subscriptions.putIfAbsent(userName, created);
+            if (names == null) {
+                names = created;
+            }
+        }
+
+        return names;
+    }
+}
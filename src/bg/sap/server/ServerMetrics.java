@@ -0,0 +1,214 @@
+package bg.sap.server;
+
+import bg.sap.utils.BufferPool;
+import bg.sap.utils.FileCache;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the server, published as MBeans. The counters are striped, so the
+ * reactors update them without contending with each other.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final String DOMAIN = "bg.sap.server";
+
+    private SessionRegistry sessionRegistry;
+    private FileCache fileCache;
+
+    // Open sessions, running file transfers and data waiting in the write queues.
+    private LongAdder sessions;
+    private LongAdder activeTransfers;
+    private LongAdder queuedBytes;
+
+    private LongAdder messagesReceived;
+    private LongAdder messagesSent;
+    private LongAdder bytesReceived;
+    private LongAdder bytesSent;
+    private LongAdder writes;
+    private LongAdder fileBytesReceived;
+    private LongAdder fileBytesSent;
+
+    // Time a reactor spends on the events of one select, and time to queue a message for all recipients.
+    private LatencyHistogram selectLoop;
+    private LatencyHistogram fanOut;
+
+    public ServerMetrics(SessionRegistry sessionRegistry, FileCache fileCache) {
+        this.sessionRegistry = sessionRegistry;
+        this.fileCache = fileCache;
+        this.sessions = new LongAdder();
+        this.activeTransfers = new LongAdder();
+        this.queuedBytes = new LongAdder();
+        this.messagesReceived = new LongAdder();
+        this.messagesSent = new LongAdder();
+        this.bytesReceived = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.writes = new LongAdder();
+        this.fileBytesReceived = new LongAdder();
+        this.fileBytesSent = new LongAdder();
+        this.selectLoop = new LatencyHistogram();
+        this.fanOut = new LatencyHistogram();
+    }
+
+    /**
+     * Publish the metrics in the platform MBean server.
+     */
+    public void register() {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            mBeanServer.registerMBean(this, new ObjectName(DOMAIN + ":type=ServerMetrics"));
+            mBeanServer.registerMBean(selectLoop, new ObjectName(DOMAIN + ":type=Latency,name=SelectLoop"));
+            mBeanServer.registerMBean(fanOut, new ObjectName(DOMAIN + ":type=Latency,name=FanOut"));
+        }
+        catch (JMException exception) {
+            // A second server in the same process keeps its metrics unpublished.
+            exception.printStackTrace();
+        }
+    }
+
+    public LatencyHistogram getSelectLoop() {
+        return selectLoop;
+    }
+
+    public LatencyHistogram getFanOut() {
+        return fanOut;
+    }
+
+    void sessionOpened() {
+        sessions.increment();
+    }
+
+    void sessionClosed() {
+        sessions.decrement();
+    }
+
+    void transferStarted() {
+        activeTransfers.increment();
+    }
+
+    void transferEnded() {
+        activeTransfers.decrement();
+    }
+
+    void queued(long bytes) {
+        queuedBytes.add(bytes);
+    }
+
+    void messageReceived() {
+        messagesReceived.increment();
+    }
+
+    void messageSent() {
+        messagesSent.increment();
+    }
+
+    void received(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void sent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void write() {
+        writes.increment();
+    }
+
+    void fileReceived(long bytes) {
+        fileBytesReceived.add(bytes);
+    }
+
+    void fileSent(long bytes) {
+        fileBytesSent.add(bytes);
+    }
+
+    @Override
+    public long getSessions() {
+        return sessions.sum();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return sessionRegistry.size();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getFileBytesReceived() {
+        return fileBytesReceived.sum();
+    }
+
+    @Override
+    public long getFileBytesSent() {
+        return fileBytesSent.sum();
+    }
+
+    @Override
+    public long getBufferPoolCapacity() {
+        return BufferPool.getDefault().getCapacity();
+    }
+
+    @Override
+    public long getBufferPoolUsed() {
+        return BufferPool.getDefault().getUsed();
+    }
+
+    @Override
+    public long getUnpooledBuffers() {
+        return BufferPool.getDefault().getUnpooled();
+    }
+
+    @Override
+    public long getFileCacheBytes() {
+        return fileCache.getMappedBytes();
+    }
+
+    @Override
+    public long getFileCacheHits() {
+        return fileCache.getHits();
+    }
+
+    @Override
+    public long getFileCacheMisses() {
+        return fileCache.getMisses();
+    }
+}
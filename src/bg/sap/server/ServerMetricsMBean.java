@@ -0,0 +1,44 @@
+package bg.sap.server;
+
+/**
+ * Management interface of the server counters. Counters only grow, their rate is the throughput.
+ * @Created by Terrax on 18.10.2026.
+ */
+public interface ServerMetricsMBean {
+    long getSessions();
+
+    int getLoggedInUsers();
+
+    long getActiveTransfers();
+
+    long getQueuedBytes();
+
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    // Writes of queued messages to the sockets, fewer than the messages sent when writes are gathered.
+    long getWrites();
+
+    long getFileBytesReceived();
+
+    long getFileBytesSent();
+
+    // Direct memory of the buffer pool and the part of it which is in use.
+    long getBufferPoolCapacity();
+
+    long getBufferPoolUsed();
+
+    long getUnpooledBuffers();
+
+    // Memory mapped by the file cache and how many downloads it served.
+    long getFileCacheBytes();
+
+    long getFileCacheHits();
+
+    long getFileCacheMisses();
+}
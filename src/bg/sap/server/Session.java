@@ -0,0 +1,501 @@
+package bg.sap.server;
+
+import bg.sap.utils.BufferPool;
+import bg.sap.utils.Constants;
+import bg.sap.utils.FileChannelHelper;
+import bg.sap.utils.FileStream;
+import bg.sap.utils.FileStreams;
+import bg.sap.utils.Message;
+import bg.sap.utils.MessageDecoder;
+import bg.sap.utils.PooledBuffer;
+import bg.sap.utils.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a client connection. The protocol, the user and the queue of data for the client are the same for
+ * every engine, the subclasses write the queue out either from a reactor or from a thread of the connection.
+ * @Created by Terrax on 18.10.2026.
+ */
+public abstract class Session {
+    public enum State {
+        CONNECTED, REGISTERING, LOGGED_IN, CLOSED
+    }
+
+    private SocketChannel socketChannel;
+    private ChatServer server;
+    private MessageDecoder decoder;
+    private ServerMetrics metrics;
+
+    // The protocol of the client, known after the first bytes have arrived.
+    private boolean negotiated;
+    private volatile boolean binary;
+
+    // The user of the session, set while it is logged in.
+    private volatile String userName;
+    private volatile State state;
+
+    // Names of the rooms which the user has joined.
+    private Set<String> rooms;
+
+    // Data which could not be written yet, in order. Any thread may add, only the writer of the engine writes.
+    // The buffers are released once they have been written.
+    private Queue<PooledBuffer> writeQueue;
+    private AtomicLong queuedBytes;
+
+    // File which is being received from the client, nothing else follows it on the connection.
+    private FileChannelHelper upload;
+
+    // Files which are sent or received as streams between the chat messages.
+    private FileStreams fileStreams;
+
+    // Counters of the session. The reading and the writing thread own the plain ones, any thread may send messages.
+    private long messagesReceived;
+    private long bytesReceived;
+    private long bytesSent;
+    private AtomicLong messagesSent;
+
+    // Time of the last data from and to the client, see System.nanoTime().
+    private volatile long lastRead;
+    private volatile long lastWrite;
+
+    protected Session(SocketChannel socketChannel, ChatServer server) {
+        this.socketChannel = socketChannel;
+        this.server = server;
+        this.decoder = new MessageDecoder();
+        this.metrics = server.getMetrics();
+        this.negotiated = false;
+        this.binary = false;
+        this.state = State.CONNECTED;
+        this.rooms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.writeQueue = new ConcurrentLinkedQueue<PooledBuffer>();
+        this.queuedBytes = new AtomicLong();
+        this.fileStreams = new FileStreams();
+        this.messagesSent = new AtomicLong();
+        this.lastRead = System.nanoTime();
+        this.lastWrite = lastRead;
+
+        metrics.sessionOpened();
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    public ChatServer getServer() {
+        return server;
+    }
+
+    public MessageDecoder getDecoder() {
+        return decoder;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    Queue<PooledBuffer> getWriteQueue() {
+        return writeQueue;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    public boolean isLoggedIn() {
+        return state == State.LOGGED_IN;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public FileChannelHelper getUpload() {
+        return upload;
+    }
+
+    public void setUpload(FileChannelHelper upload) {
+        if (this.upload == null && upload != null) {
+            metrics.transferStarted();
+        }
+        else if (this.upload != null && upload == null) {
+            metrics.transferEnded();
+        }
+
+        this.upload = upload;
+    }
+
+    public FileStreams getFileStreams() {
+        return fileStreams;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    public long getLastWrite() {
+        return lastWrite;
+    }
+
+    public boolean isTransferring() {
+        return upload != null || isDownloading();
+    }
+
+    public abstract boolean isOpen();
+
+    public abstract boolean isDownloading();
+
+    public abstract int getStreamCount();
+
+    public boolean isStreaming() {
+        return getStreamCount() > 0;
+    }
+
+    /**
+     * Read the data which the client has sent. Called by the thread which reads the connection.
+     * @return the number of bytes read or -1 if the client has closed the connection.
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        int readBytes = decoder.read(socketChannel);
+
+        if (readBytes > 0) {
+            bytesReceived += readBytes;
+            lastRead = System.nanoTime();
+            metrics.received(readBytes);
+        }
+
+        return readBytes;
+    }
+
+    /**
+     * Count data of an upload which has been stored.
+     * @param received the number of bytes.
+     */
+    public void fileReceived(long received) {
+        if (received > 0) {
+            bytesReceived += received;
+            lastRead = System.nanoTime();
+            metrics.fileReceived(received);
+        }
+    }
+
+    /**
+     * Get the next complete message received from the client. Old clients which do not start with the
+     * magic bytes are served through the text protocol.
+     * @return the message or null if no complete message is buffered.
+     * @throws IOException if the client violates the protocol.
+     */
+    public Message nextMessage() throws IOException {
+        if (!negotiated) {
+            int protocol = decoder.detectProtocol();
+            if (protocol == -1) {
+                return null;
+            }
+
+            negotiated = true;
+            binary = protocol == 1;
+
+            // Confirm the binary protocol to the client.
+            if (binary) {
+                send(new Message(Protocol.HELLO, (long) Protocol.VERSION));
+            }
+        }
+
+        Message message;
+        if (binary) {
+            message = decoder.nextFrame();
+        }
+        else {
+            String data = decoder.nextMessage();
+            message = data == null ? null : Protocol.parseText(data, isLoggedIn());
+        }
+
+        if (message != null) {
+            messagesReceived++;
+            metrics.messageReceived();
+        }
+
+        return message;
+    }
+
+    /**
+     * Start sending a file to the client once the queued data has been written. The connection is closed
+     * when it is complete.
+     * @param fileChannelHelper the file to send.
+     * @throws IOException
+     */
+    public abstract void startDownload(FileChannelHelper fileChannelHelper) throws IOException;
+
+    /**
+     * Start sending a stream of messages once the queued data and the streams started before have been
+     * written.
+     * @param stream the messages to send.
+     * @throws IOException
+     */
+    public abstract void startStream(MessageStream stream) throws IOException;
+
+    /**
+     * Continue the streams once a stream which waited for its data has got it. Called by any thread.
+     * @throws IOException
+     */
+    public void streamReady() throws IOException {
+        queued();
+    }
+
+    /**
+     * Run a task in order with the messages of the session, e.g. when another thread reports the outcome of
+     * a request.
+     * @param task the task to run.
+     */
+    public abstract void execute(Runnable task);
+
+    /**
+     * Close the connection once all queued data has been written.
+     * @throws IOException
+     */
+    public abstract void closeAfterFlush() throws IOException;
+
+    /**
+     * Send a message to the client in its protocol.
+     * @param message the message to send.
+     * @throws IOException
+     */
+    public void send(Message message) throws IOException {
+        PooledBuffer buffer = Protocol.encode(message, binary, BufferPool.getDefault());
+
+        // Messages without a text representation are not sent to old clients.
+        if (buffer != null) {
+            sendEncoded(buffer);
+        }
+    }
+
+    /**
+     * Send a message which has already been encoded in the protocol of the client.
+     * @param buffer the encoded message, the session releases it.
+     * @throws IOException
+     */
+    public void sendEncoded(PooledBuffer buffer) throws IOException {
+        send(buffer);
+        messagesSent.incrementAndGet();
+        metrics.messageSent();
+    }
+
+    /**
+     * Queue data for the client and let the writer of the engine know about it.
+     * @param buffer the data to send.
+     * @throws IOException if the connection is closed or the client does not keep up.
+     */
+    public void send(ByteBuffer buffer) throws IOException {
+        send(PooledBuffer.wrap(buffer));
+    }
+
+    /**
+     * Queue data for the client and let the writer of the engine know about it. The session releases the
+     * buffer once it has been written, or right away if it can not be queued.
+     * @param buffer the data to send.
+     * @throws IOException if the connection is closed or the client does not keep up.
+     */
+    public void send(PooledBuffer buffer) throws IOException {
+        if (!isOpen()) {
+            buffer.release();
+            throw new IOException("Session is closed");
+        }
+
+        int length = buffer.getBuffer().remaining();
+        if (queuedBytes.addAndGet(length) > Constants.MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-length);
+            buffer.release();
+            throw new IOException("Write queue of the client is full");
+        }
+        metrics.queued(length);
+
+        writeQueue.add(buffer);
+
+        // The session may have been closed since the check, then the queue is released here.
+        if (state == State.CLOSED || !isOpen()) {
+            releaseQueue();
+            metrics.queued(-queuedBytes.getAndSet(0));
+            throw new IOException("Session is closed");
+        }
+
+        queued();
+    }
+
+    /**
+     * Queue the next chunk of the file streams, which take turns. Called by the writer of the engine once the
+     * messages have been written, so a chunk holds a message back for one write at most.
+     * @return false if no stream may send.
+     * @throws IOException
+     */
+    boolean sendChunk() throws IOException {
+        FileStream stream;
+        PooledBuffer chunk;
+
+        // A stream which has been cancelled meanwhile has no chunk, it has been removed so its turn is gone.
+        do {
+            stream = fileStreams.nextReady();
+            if (stream == null) {
+                return false;
+            }
+
+            chunk = stream.nextChunk(BufferPool.getDefault());
+        }
+        while (chunk == null);
+
+        metrics.fileSent(chunk.getBuffer().remaining() - Protocol.DATA_HEADER_SIZE);
+        send(chunk);
+
+        if (stream.isComplete() && fileStreams.remove(stream.getId()) != null) {
+            stream.close();
+            metrics.transferEnded();
+        }
+        else {
+            // Read the next chunk while this one is written.
+            server.readAhead(this, stream);
+        }
+
+        return true;
+    }
+
+    /**
+     * Write the queued data or arrange for it to be written. Called by the thread which queued it.
+     * @throws IOException
+     */
+    protected abstract void queued() throws IOException;
+
+    /**
+     * Write the head of the queue with a single gathering write and remove the buffers which have been
+     * written completely. Called by the writer of the engine.
+     * @param batch the array which takes the buffers for the write, it is cleared afterwards.
+     * @param maxBytes the size after which no more buffers are gathered, the first buffer is always taken.
+     * @return false if the socket did not take all of the gathered data, true otherwise.
+     * @throws IOException
+     */
+    boolean writeQueued(ByteBuffer[] batch, long maxBytes) throws IOException {
+        int count = 0;
+        long gathered = 0;
+
+        for (PooledBuffer buffer : writeQueue) {
+            if (count == batch.length || (count > 0 && gathered >= maxBytes)) {
+                break;
+            }
+
+            batch[count++] = buffer.getBuffer();
+            gathered += batch[count - 1].remaining();
+        }
+
+        if (count == 0) {
+            return true;
+        }
+
+        long written = count == 1 ? socketChannel.write(batch[0]) : socketChannel.write(batch, 0, count);
+        metrics.write();
+        queuedBytes.addAndGet(-written);
+        metrics.queued(-written);
+        sent(written);
+
+        // Only the writer removes buffers, so the gathered ones are still the head of the queue unless the
+        // session has been closed meanwhile.
+        for (int i = 0; i < count && !batch[i].hasRemaining(); i++) {
+            PooledBuffer buffer = writeQueue.poll();
+
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+        Arrays.fill(batch, 0, count, null);
+
+        return written == gathered;
+    }
+
+    /**
+     * Count data which has been written to the socket.
+     * @param sent the number of bytes.
+     */
+    void sent(long sent) {
+        if (sent > 0) {
+            bytesSent += sent;
+            lastWrite = System.nanoTime();
+            metrics.sent(sent);
+        }
+    }
+
+    /**
+     * Close the channel of the connection.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (state != State.CLOSED) {
+            metrics.sessionClosed();
+        }
+
+        state = State.CLOSED;
+        releaseQueue();
+        metrics.queued(-queuedBytes.getAndSet(0));
+
+        closeChannel();
+    }
+
+    /**
+     * Release the buffers of the queue, whoever removes a buffer releases it.
+     */
+    private void releaseQueue() {
+        PooledBuffer buffer;
+
+        while ((buffer = writeQueue.poll()) != null) {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Drop the work of the engine for the connection and close its channel.
+     * @throws IOException
+     */
+    protected abstract void closeChannel() throws IOException;
+}
@@ -0,0 +1,68 @@
+package bg.sap.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the logged in sessions by the names of their users.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class SessionRegistry {
+    private ConcurrentMap<String, Session> sessions;
+
+    public SessionRegistry() {
+        this.sessions = new ConcurrentHashMap<String, Session>();
+    }
+
+    /**
+     * Log a session in. The check whether the user is already logged in and the registration are atomic.
+     * @param session the session.
+     * @param userName the name of the user.
+     * @return true if the session has been logged in, false if the user is already logged in.
+     */
+    public boolean login(Session session, String userName) {
+        if (sessions.putIfAbsent(userName, session) != null) {
+            return false;
+        }
+
+        session.setUserName(userName);
+        session.setState(Session.State.LOGGED_IN);
+
+        return true;
+    }
+
+    /**
+     * Log a session out, e.g. because it has been closed.
+     * @param session the session.
+     */
+    public void logout(Session session) {
+        String userName = session.getUserName();
+
+        if (userName != null) {
+            sessions.remove(userName, session);
+            session.setUserName(null);
+        }
+
+        if (session.getState() != Session.State.CLOSED) {
+            session.setState(Session.State.CONNECTED);
+        }
+    }
+
+    /**
+     * Find the session of a user.
+     * @param userName the name of the user.
+     * @return the session or null if the user is not logged in.
+     */
+    public Session get(String userName) {
+        return sessions.get(userName);
+    }
+
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
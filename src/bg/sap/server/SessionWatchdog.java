@@ -0,0 +1,109 @@
+package bg.sap.server;
+
+import bg.sap.utils.Constants;
+import bg.sap.utils.Message;
+import bg.sap.utils.Protocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeouts of a session, checked on the timer wheel of its engine. The watchdog wakes up when the session
+ * could have timed out at the earliest and schedules itself again if there was data since, so an active
+ * session costs nothing but the time of its last read.
+ *
+ * A client which is quiet for the heartbeat interval gets a PING and is closed if nothing arrives within the
+ * heartbeat timeout. Old clients can not answer a PING, they are closed only if they have not logged in. A
+ * transfer is closed if no data has moved for the transfer timeout, which releases the file of an upload.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class SessionWatchdog implements Runnable {
+    private Session session;
+    private TimerWheel timerWheel;
+    private boolean pinged;
+
+    public SessionWatchdog(Session session, TimerWheel timerWheel) {
+        this.session = session;
+        this.timerWheel = timerWheel;
+        this.pinged = false;
+    }
+
+    /**
+     * Start watching the session.
+     */
+    public void start() {
+        timerWheel.schedule(this, firstCheck());
+    }
+
+    @Override
+    public void run() {
+        if (!session.isOpen()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long next;
+
+        if (session.isTransferring()) {
+            long idle = millisSince(Math.max(session.getLastRead(), session.getLastWrite()), now);
+
+            if (idle >= Constants.TRANSFER_TIMEOUT) {
+                close("Transfer timed out");
+                return;
+            }
+            next = Constants.TRANSFER_TIMEOUT - idle;
+        }
+        else if (Constants.HEARTBEAT_INTERVAL > 0 && (session.isBinary() || !session.isLoggedIn())) {
+            long idle = millisSince(session.getLastRead(), now);
+
+            if (idle < Constants.HEARTBEAT_INTERVAL) {
+                pinged = false;
+                next = Constants.HEARTBEAT_INTERVAL - idle;
+            }
+            else if (idle >= Constants.HEARTBEAT_INTERVAL + Constants.HEARTBEAT_TIMEOUT) {
+                close("Connection timed out");
+                return;
+            }
+            else {
+                if (!pinged && session.isBinary()) {
+                    ping();
+                }
+                pinged = true;
+                next = Constants.HEARTBEAT_INTERVAL + Constants.HEARTBEAT_TIMEOUT - idle;
+            }
+        }
+        else {
+            // Nothing can time out now, look again in case a transfer starts.
+            next = firstCheck();
+        }
+
+        timerWheel.schedule(this, next);
+    }
+
+    private void ping() {
+        try {
+            session.send(new Message(Protocol.PING));
+        }
+        catch (IOException exception) {
+            session.getServer().disconnect(session);
+        }
+    }
+
+    private void close(String reason) {
+        System.out.println(reason + (session.getUserName() != null ? " for " + session.getUserName() : "") + ".");
+
+        session.getServer().disconnect(session);
+    }
+
+    private static long firstCheck() {
+        if (Constants.HEARTBEAT_INTERVAL > 0) {
+            return Math.min(Constants.HEARTBEAT_INTERVAL, Constants.TRANSFER_TIMEOUT);
+        }
+
+        return Constants.TRANSFER_TIMEOUT;
+    }
+
+    private static long millisSince(long time, long now) {
+        return TimeUnit.NANOSECONDS.toMillis(now - time);
+    }
+}
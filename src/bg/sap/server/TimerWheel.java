@@ -0,0 +1,150 @@
+package bg.sap.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed wheel of timeouts. A timeout goes into the slot of the tick at which it is due, together with the
+ * number of turns the wheel makes before then, so a tick only looks at the timeouts of a single slot. Any
+ * thread may schedule a timeout, only the thread which owns the wheel ticks it and runs the expired tasks.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class TimerWheel {
+    /**
+     * A scheduled task. A cancelled timeout stays in its slot until the wheel reaches it.
+     */
+    public static class Timeout {
+        private Runnable task;
+        private long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        // Next timeout of the same slot.
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private long tickNanos;
+    private long startTime;
+    private Timeout[] slots;
+    private int mask;
+
+    // The next tick to process.
+    private long tick;
+
+    // Timeouts which have been scheduled since the last tick.
+    private Queue<Timeout> pending;
+
+    /**
+     * @param tickMillis the duration of a tick in milliseconds.
+     * @param slotCount the number of slots, rounded up to a power of two.
+     */
+    public TimerWheel(long tickMillis, int slotCount) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startTime = System.nanoTime();
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.tick = 0;
+        this.pending = new ConcurrentLinkedQueue<Timeout>();
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    /**
+     * Schedule a task. Called by any thread.
+     * @param task the task, which runs on the thread of the wheel.
+     * @param delayMillis the delay in milliseconds, the task runs at the first tick after it.
+     * @return the timeout, which can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Process the ticks which have passed and run the expired tasks. Called by the thread of the wheel.
+     */
+    public void tick() {
+        long now = (System.nanoTime() - startTime) / tickNanos;
+
+        while (tick <= now) {
+            // Timeouts which are due already go into the slot of this tick.
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                place(timeout);
+            }
+
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        if (timeout.cancelled) {
+            return;
+        }
+
+        long due = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+        int slot = (int) (due & mask);
+
+        timeout.rounds = (due - tick) / slots.length;
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+
+    /**
+     * Run the timeouts of a slot which are due in this turn of the wheel and keep the others. Cancelled
+     * timeouts are dropped.
+     * @param slot the index of the slot.
+     */
+    private void expire(int slot) {
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+
+            if (timeout.cancelled) {
+                timeout = next;
+                continue;
+            }
+
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout.next = slots[slot];
+                slots[slot] = timeout;
+            }
+            else {
+                // A task which schedules again goes into the pending queue, not into this slot.
+                try {
+                    timeout.task.run();
+                }
+                catch (RuntimeException exception) {
+                    exception.printStackTrace();
+                }
+            }
+
+            timeout = next;
+        }
+    }
+}
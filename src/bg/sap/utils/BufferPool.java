@@ -0,0 +1,240 @@
+package bg.sap.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers for socket and file I/O. A heap buffer is copied by the JDK into a temporary direct
+ * buffer on every channel read and write, a direct buffer from the pool is handed to the socket as it is.
+ *
+ * The buffers come in size classes of powers of two, a request is served from the smallest class which fits.
+ * A class carves its buffers out of direct slabs which are never freed, so allocating the memory (which is
+ * slow for direct buffers) happens only while the pool grows. Larger requests get a direct buffer of their
+ * own which is left to the garbage collector.
+ *
+ * With -Dsimplechat.leakDetection=true the pool remembers where every buffer has been acquired and reports
+ * the buffers which are collected without having been released.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class BufferPool {
+    private static final BufferPool DEFAULT = new BufferPool(Constants.POOL_MIN_BUFFER, Constants.POOL_MAX_BUFFER,
+            Constants.POOL_SLAB_SIZE, Boolean.getBoolean("simplechat.leakDetection"));
+
+    private int minShift;
+    private int slabSize;
+
+    // Free buffers of every size class, a stack so the most recently used memory is reused first.
+    private ArrayDeque<PooledBuffer>[] free;
+
+    private AtomicLong capacity;
+    private AtomicLong used;
+    private AtomicLong unpooled;
+
+    private boolean leakDetection;
+    private ReferenceQueue<PooledBuffer> collected;
+    private Set<Leak> tracked;
+
+    /**
+     * Create a pool.
+     * @param minBuffer the size of the smallest class, a power of two.
+     * @param maxBuffer the size of the largest class, a power of two.
+     * @param slabSize the size of the slabs which the buffers are carved from.
+     * @param leakDetection true to report buffers which are not released.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minBuffer, int maxBuffer, int slabSize, boolean leakDetection) {
+        if (Integer.bitCount(minBuffer) != 1 || Integer.bitCount(maxBuffer) != 1 || minBuffer > maxBuffer) {
+            throw new IllegalArgumentException("Buffer sizes must be powers of two");
+        }
+
+        this.minShift = Integer.numberOfTrailingZeros(minBuffer);
+        this.slabSize = Math.max(slabSize, maxBuffer);
+        int classes = Integer.numberOfTrailingZeros(maxBuffer) - minShift + 1;
+        this.free = (ArrayDeque<PooledBuffer>[]) new ArrayDeque<?>[classes];
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ArrayDeque<PooledBuffer>();
+        }
+
+        this.capacity = new AtomicLong();
+        this.used = new AtomicLong();
+        this.unpooled = new AtomicLong();
+
+        this.leakDetection = leakDetection;
+        if (leakDetection) {
+            this.collected = new ReferenceQueue<PooledBuffer>();
+            this.tracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+        }
+    }
+
+    /**
+     * Get the pool which the server and the client share.
+     * @return the pool.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get a buffer for at least the given number of bytes. The buffer is cleared and its limit is the
+     * requested size.
+     * @param size the number of bytes.
+     * @return the buffer which must be released when it is not used any more.
+     */
+    public PooledBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+
+        if (sizeClass >= free.length) {
+            unpooled.incrementAndGet();
+
+            return PooledBuffer.wrap(ByteBuffer.allocateDirect(size));
+        }
+
+        PooledBuffer buffer;
+        ArrayDeque<PooledBuffer> stack = free[sizeClass];
+
+        synchronized (stack) {
+            buffer = stack.pollFirst();
+        }
+
+        if (buffer == null) {
+            buffer = grow(sizeClass);
+        }
+
+        buffer.reset(size);
+        used.addAndGet(classSize(sizeClass));
+
+        if (leakDetection) {
+            reportLeaks();
+
+            Leak leak = new Leak(buffer, collected);
+            tracked.add(leak);
+            buffer.setLeak(leak);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Take back a buffer whose last reference has been released.
+     * @param buffer the buffer.
+     */
+    void recycle(PooledBuffer buffer) {
+        Leak leak = buffer.getLeak();
+
+        if (leak != null) {
+            buffer.setLeak(null);
+            tracked.remove(leak);
+            leak.clear();
+        }
+
+        used.addAndGet(-classSize(buffer.getSizeClass()));
+
+        ArrayDeque<PooledBuffer> stack = free[buffer.getSizeClass()];
+        synchronized (stack) {
+            stack.addFirst(buffer);
+        }
+    }
+
+    /**
+     * Carve a new slab into buffers of a size class.
+     * @param sizeClass the size class.
+     * @return one buffer of the slab, the others are added to the free buffers of the class.
+     */
+    private PooledBuffer grow(int sizeClass) {
+        int size = classSize(sizeClass);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        capacity.addAndGet(slabSize);
+
+        int count = slabSize / size;
+        PooledBuffer first = null;
+        ArrayDeque<PooledBuffer> stack = free[sizeClass];
+
+        synchronized (stack) {
+            for (int i = 0; i < count; i++) {
+                slab.limit(i * size + size).position(i * size);
+                PooledBuffer buffer = new PooledBuffer(slab.slice(), this, sizeClass);
+
+                if (first == null) {
+                    first = buffer;
+                }
+                else {
+                    stack.addLast(buffer);
+                }
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * Report the buffers which have been collected without being released.
+     */
+    private void reportLeaks() {
+        Leak leak;
+
+        while ((leak = (Leak) collected.poll()) != null) {
+            if (tracked.remove(leak)) {
+                System.err.println("LEAK: a pooled buffer was collected without being released.");
+                leak.getAllocation().printStackTrace();
+            }
+        }
+    }
+
+    private int sizeClass(int size) {
+        if (size <= 1 << minShift) {
+            return 0;
+        }
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    private int classSize(int sizeClass) {
+        return 1 << (sizeClass + minShift);
+    }
+
+    /**
+     * Get the size of the slabs which have been allocated.
+     * @return the number of bytes.
+     */
+    public long getCapacity() {
+        return capacity.get();
+    }
+
+    /**
+     * Get the size of the pooled buffers which are in use.
+     * @return the number of bytes.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Get the number of buffers which were too large for the pool.
+     * @return the number of buffers.
+     */
+    public long getUnpooled() {
+        return unpooled.get();
+    }
+
+    /**
+     * Reference of a buffer in use, which remembers where the buffer has been acquired.
+     */
+    static class Leak extends WeakReference<PooledBuffer> {
+        private Throwable allocation;
+
+        Leak(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+            this.allocation = new Throwable("Buffer acquired here");
+        }
+
+        Throwable getAllocation() {
+            return allocation;
+        }
+    }
+}
@@ -5,15 +5,58 @@ package bg.sap.utils;
  */
 public class Constants {
     public static final int PORT = 4444;
-    public static final int SINGLE_BYTE = 1;
-    public static final int BUFFER_SIZE = 64;
+    public static final int REACTOR_COUNT = Runtime.getRuntime().availableProcessors();
+    public static final String SERVER_ENGINE = System.getProperty("simplechat.engine", "reactor");
+    public static final String ENGINE_THREADS = "threads";
+    public static final int BUFFER_SIZE = 8 * 1024;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    public static final int MAX_USER_NAME_LENGTH = 64;
+    public static final int MAX_TEXT_LENGTH = 60 * 1024;
     public static final int FRAME_WIDTH = 300;
     public static final int FRAME_HEIGHT = 400;
     public static final int TEXT_FIELD_WIDTH = 100;
     public static final int TEXT_FIELD_HEIGHT = 30;
-    public static final int FILE_FRAGMENT_SIZE = 1024 * 1024;
+    public static final int FILE_FRAGMENT_SIZE = Integer.getInteger("simplechat.chunkSize", 1024 * 1024);
+    public static final int TRANSFER_STREAMS = Integer.getInteger("simplechat.transferStreams", 4);
+    public static final long PARALLEL_TRANSFER_THRESHOLD = Long.getLong("simplechat.parallelThreshold", 64L * 1024 * 1024);
+    public static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    public static final int WRITE_PASS_BYTES = Integer.getInteger("simplechat.writePassBytes", 256 * 1024);
+    public static final int WRITE_BATCH_BUFFERS = 64;
+    public static final int POOL_MIN_BUFFER = 64;
+    public static final int POOL_MAX_BUFFER = 128 * 1024;
+    public static final int POOL_SLAB_SIZE = 1024 * 1024;
+    public static final int DISK_FRAGMENT_SIZE = Math.min(FILE_FRAGMENT_SIZE, POOL_MAX_BUFFER);
+    public static final int DISK_THREADS = Integer.getInteger("simplechat.diskThreads", 4);
+    public static final int DISK_QUEUE_SIZE = Integer.getInteger("simplechat.diskQueueSize", 1024);
+    public static final long FILE_CACHE_SIZE = Long.getLong("simplechat.fileCacheSize", 256L * 1024 * 1024);
+    public static final long FILE_CACHE_MAX_FILE = Long.getLong("simplechat.fileCacheMaxFile", 64L * 1024 * 1024);
+    public static final int STREAM_WINDOW = Integer.getInteger("simplechat.streamWindow", 1024 * 1024);
+    public static final int STREAM_CHUNK_SIZE = 32 * 1024;
+    public static final int MAX_FILE_STREAMS = 16;
+    public static final int FILE_LIST_PAGE_SIZE = 256;
+    public static final int ACCOUNT_BATCH_SIZE = 1024;
+    public static final int HISTORY_RING_SIZE = 4096;
+    public static final int HISTORY_SEGMENT_SIZE = Integer.getInteger("simplechat.historySegmentSize", 16 * 1024 * 1024);
+    public static final int HISTORY_SEGMENTS = Integer.getInteger("simplechat.historySegments", 16);
+    public static final int HISTORY_FORCE_INTERVAL = 1000;
+    public static final int HISTORY_BATCH_SIZE = 32 * 1024;
+    public static final int HISTORY_REPLAY_COUNT = 50;
+    public static final int ROOM_LIST_SIZE = 256;
+    public static final int INBOX_LIMIT = Integer.getInteger("simplechat.inboxLimit", 10000);
+    public static final int MAX_STREAMS = 4;
+    public static final int HEARTBEAT_INTERVAL = Integer.getInteger("simplechat.heartbeatInterval", 30000);
+    public static final int HEARTBEAT_TIMEOUT = Integer.getInteger("simplechat.heartbeatTimeout", 10000);
+    public static final int TRANSFER_TIMEOUT = Integer.getInteger("simplechat.transferTimeout", 60000);
+    public static final int TIMER_TICK = 100;
+    public static final int TIMER_SLOTS = 512;
+    public static final int ACCOUNT_COMPACTION_THRESHOLD = Integer.getInteger("simplechat.compactionThreshold", 10000);
     public static final String UTF_ENCODING = "UTF-8";
     public static final String FILE_DIR = "C:\\Users\\Terrax\\Documents\\IntelliJ Projects\\SimpleChat\\Files\\";
+    public static final String PARTIAL_SUFFIX = ".part";
+    public static final String ACCOUNTS_FILE = "accounts.txt";
+    public static final String ACCOUNTS_SNAPSHOT = "accounts.snapshot";
+    public static final String HISTORY_DIR = "history";
+    public static final String INBOX_DIR = "inbox";
     public static final String FILE_UPLOAD = "*File upload";
     public static final String FILE_DOWNLOAD = "*File download";
     public static final String LOGOUT = "*Logout";
@@ -0,0 +1,160 @@
+package bg.sap.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file which is received in byte ranges over several connections at once. Every range is written
+ * positionally into the same partial file, the file gets its name once all bytes have arrived.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileAssembly {
+    private File file;
+    private File partialFile;
+    private FileChannel fileChannel;
+    private long size;
+
+    private AtomicLong received;
+    private AtomicInteger streams;
+    private AtomicBoolean closed;
+
+    private FileAssembly(File file, long size) throws IOException {
+        this.file = file;
+        this.partialFile = OperationHandler.getPartialFile(file);
+        this.fileChannel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.size = size;
+        this.received = new AtomicLong();
+        this.streams = new AtomicInteger();
+        this.closed = new AtomicBoolean(false);
+
+        // FileChannel.transferFrom() stores nothing behind the end of the file, so a range which starts there
+        // would stall. Writing the last byte gives the file its size, the range which ends there overwrites it.
+        if (size > 0) {
+            fileChannel.write(ByteBuffer.allocate(1), size - 1);
+        }
+    }
+
+    /**
+     * Create the partial file for a file which is received in ranges.
+     * @param file the complete file.
+     * @param size the size of the complete file.
+     * @return the assembly.
+     * @throws IOException
+     */
+    public static FileAssembly open(File file, long size) throws IOException {
+        return new FileAssembly(file, size);
+    }
+
+    /**
+     * Split a file into the ranges which are transferred in parallel.
+     * @param size the size of the file.
+     * @param streams the number of parallel connections.
+     * @return pairs of offset and length.
+     */
+    public static long[][] split(long size, int streams) {
+        // Ranges are whole fragments, so every transferTo or transferFrom call moves a full fragment.
+        long fragments = (size + Constants.FILE_FRAGMENT_SIZE - 1) / Constants.FILE_FRAGMENT_SIZE;
+        long rangeSize = (fragments + streams - 1) / streams * Constants.FILE_FRAGMENT_SIZE;
+
+        int count = (int) ((size + rangeSize - 1) / rangeSize);
+        long[][] ranges = new long[count][];
+
+        for (int i = 0; i < count; i++) {
+            long offset = i * rangeSize;
+            ranges[i] = new long[]{offset, Math.min(rangeSize, size - offset)};
+        }
+
+        return ranges;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Start receiving a range of the file.
+     * @param offset the position of the first byte of the range.
+     * @param length the length of the range.
+     * @return the file channel helper which ends with the range.
+     * @throws IOException if the range does not lie within the file.
+     */
+    public FileChannelHelper openRange(long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException("Invalid range " + offset + "+" + length + " of " + file.getName());
+        }
+
+        streams.incrementAndGet();
+
+        FileChannelHelper fileChannelHelper = new FileChannelHelper(partialFile, offset + length, offset, fileChannel);
+        fileChannelHelper.setAssembly(this);
+
+        return fileChannelHelper;
+    }
+
+    /**
+     * Count bytes which have been written to the file.
+     * @param bytes the number of bytes.
+     */
+    public void addReceived(long bytes) {
+        received.addAndGet(bytes);
+    }
+
+    /**
+     * Finish a range which has been received completely.
+     * @return true if this was the last missing range and the file is complete.
+     * @throws IOException if the file is not complete although all bytes have been counted.
+     */
+    public boolean finishRange() throws IOException {
+        streams.decrementAndGet();
+
+        if (received.get() < size || !closed.compareAndSet(false, true)) {
+            return false;
+        }
+
+        // Check that the file holds exactly what was announced.
+        long actualSize = fileChannel.size();
+
+        fileChannel.force(false);
+        fileChannel.close();
+
+        if (actualSize != size || received.get() != size) {
+            throw new IOException("Incomplete file " + file.getName() + ": " + actualSize + " of " + size + " bytes");
+        }
+
+        return true;
+    }
+
+    /**
+     * Give up a range which will not be completed. The file is closed when no range is left.
+     * @return true if the file has been closed.
+     * @throws IOException
+     */
+    public boolean release() throws IOException {
+        if (streams.decrementAndGet() > 0 || !closed.compareAndSet(false, true)) {
+            return false;
+        }
+
+        fileChannel.close();
+
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+}
@@ -0,0 +1,213 @@
+package bg.sap.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the files which are downloaded, mapped into memory. Concurrent downloads of the same file share its
+ * mapping and a repeated download is sent from the page cache without opening the file again.
+ *
+ * The cache is bounded by the mapped bytes and drops the least recently downloaded files which no download
+ * uses. A file is dropped as well when an upload replaces it, or when it has been changed in the directory.
+ * Files which are too large for the cache are opened for every download as before.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileCache {
+    private long maxBytes;
+    private long maxFileSize;
+
+    // Cached files by path, in the order of their last download.
+    private LinkedHashMap<String, MappedFile> files;
+
+    // Size of the mappings which are cached or still used by a download.
+    private AtomicLong mappedBytes;
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    /**
+     * @param maxBytes the number of bytes which may be mapped.
+     * @param maxFileSize the size of the largest file which is cached.
+     */
+    public FileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+        this.files = new LinkedHashMap<String, MappedFile>(16, 0.75f, true);
+        this.mappedBytes = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Get the mapping of a file for a download. This opens and maps the file if it is not cached, so it is
+     * called off the reactors.
+     * @param file the file.
+     * @return the mapping which must be released, or null if the file is not cached.
+     * @throws IOException
+     */
+    public MappedFile acquire(File file) throws IOException {
+        String path = file.getPath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+
+        synchronized (this) {
+            MappedFile mappedFile = files.get(path);
+
+            if (mappedFile != null) {
+                // The file has been changed since it was mapped.
+                if (mappedFile.getLastModified() != lastModified || mappedFile.getSize() != size) {
+                    files.remove(path);
+                    mappedFile.release();
+                }
+                else {
+                    mappedFile.retain();
+                    hits.incrementAndGet();
+                    return mappedFile;
+                }
+            }
+
+            misses.incrementAndGet();
+
+            if (size == 0 || size > maxFileSize || !reserve(size)) {
+                return null;
+            }
+        }
+
+        // The reserved bytes become the size of the mapping, they are given back if there is none.
+        MappedFile mappedFile = null;
+        try {
+            mappedFile = map(file, size, lastModified);
+        }
+        finally {
+            if (mappedFile == null) {
+                mappedBytes.addAndGet(-size);
+            }
+        }
+
+        if (mappedFile == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            MappedFile cached = files.get(path);
+
+            // Another download has mapped the file meanwhile.
+            if (cached != null && cached.getLastModified() == lastModified) {
+                cached.retain();
+                mappedFile.release();
+                return cached;
+            }
+
+            if (cached != null) {
+                cached.release();
+            }
+            files.put(path, mappedFile);
+
+            // One reference for the cache, one for the download.
+            mappedFile.retain();
+
+            return mappedFile;
+        }
+    }
+
+    /**
+     * Drop a file which has been replaced. Running downloads keep their mapping until they end.
+     * @param file the file.
+     */
+    public synchronized void invalidate(File file) {
+        MappedFile mappedFile = files.remove(file.getPath());
+
+        if (mappedFile != null) {
+            mappedFile.release();
+        }
+    }
+
+    /**
+     * Forget a mapping whose last reference has been released.
+     * @param mappedFile the mapping.
+     */
+    void unmapped(MappedFile mappedFile) {
+        mappedBytes.addAndGet(-mappedFile.getSize());
+    }
+
+    /**
+     * Drop the least recently downloaded files which no download uses until a file of the given size fits, and
+     * reserve its bytes. Concurrent misses map their files outside the lock, the reservation keeps them from
+     * exceeding the bound together.
+     * @param size the size of the file.
+     * @return false if the file does not fit because the other mappings are in use.
+     */
+    private boolean reserve(long size) {
+        Iterator<Map.Entry<String, MappedFile>> iterator = files.entrySet().iterator();
+
+        while (mappedBytes.get() + size > maxBytes && iterator.hasNext()) {
+            MappedFile mappedFile = iterator.next().getValue();
+
+            // The mapping of a running download is not freed by dropping it.
+            if (mappedFile.isShared()) {
+                continue;
+            }
+
+            iterator.remove();
+            mappedFile.release();
+        }
+
+        // Released mappings are subtracted outside the lock.
+        for (long current; (current = mappedBytes.get()) + size <= maxBytes; ) {
+            if (mappedBytes.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Map a file, the mapping outlives the channel.
+     * @param file the file.
+     * @param size the size of the file when it was looked up.
+     * @param lastModified the time of the last change of the file when it was looked up.
+     * @return the mapping with one reference, or null if the file has changed meanwhile. Its bytes have been
+     * reserved.
+     * @throws IOException
+     */
+    private MappedFile map(File file, long size, long lastModified) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer buffer;
+
+        try {
+            if (fileChannel.size() != size) {
+                return null;
+            }
+
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally {
+            fileChannel.close();
+        }
+
+        return new MappedFile(file, buffer, lastModified, this);
+    }
+
+    /**
+     * Get the size of the mappings which are cached or used by downloads.
+     * @return the number of bytes.
+     */
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
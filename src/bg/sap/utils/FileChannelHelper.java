@@ -1,5 +1,7 @@
 package bg.sap.utils;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.channels.FileChannel;
 
 /**
@@ -9,10 +11,22 @@ public class FileChannelHelper {
     private long size;
     private long position;
     private FileChannel fileChannel;
+    private File file;
+
+    // Set when the file is received in ranges over several connections.
+    private FileAssembly assembly;
+
+    // Set when the file is sent from the file cache instead of the file channel.
+    private MappedFile mappedFile;
 
     public FileChannelHelper(long size, FileChannel fileChannel) {
+        this(null, size, 0, fileChannel);
+    }
+
+    public FileChannelHelper(File file, long size, long position, FileChannel fileChannel) {
+        this.file = file;
         this.size = size;
-        this.position = 0;
+        this.position = position;
         this.fileChannel = fileChannel;
     }
 
@@ -43,4 +57,47 @@ public class FileChannelHelper {
     public void setFileChannel (FileChannel fileChannel) {
         this.fileChannel = fileChannel;
     }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public FileAssembly getAssembly() {
+        return assembly;
+    }
+
+    public void setAssembly(FileAssembly assembly) {
+        this.assembly = assembly;
+    }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    public void setMappedFile(MappedFile mappedFile) {
+        this.mappedFile = mappedFile;
+    }
+
+    public boolean isComplete() {
+        return position >= size;
+    }
+
+    /**
+     * Close the file channel and give the mapping of a cached file back to the cache. Closing twice does nothing.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (mappedFile != null) {
+            mappedFile.release();
+            mappedFile = null;
+        }
+
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+    }
 }
@@ -0,0 +1,316 @@
+package bg.sap.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A file which is sent or received as a numbered stream on the chat connection, in STREAM_DATA frames
+ * interleaved with the chat messages. The sender may only send as many bytes as the receiver has granted,
+ * which bounds the data a slow receiver has to buffer and keeps the chat connection free for messages.
+ *
+ * The sender takes its chunks on the writing thread while the window is granted and the stream may be
+ * cancelled on the reading thread. The receiver accepts the chunks on the reading thread.
+ *
+ * A thread which serves many connections must not wait for the disk. A sender which reads ahead has the next
+ * chunk of a file which is not mapped read by a disk thread, the writing thread only takes chunks which are
+ * ready. A receiver has its chunks written wherever it likes, once they have been accepted.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileStream {
+    private long id;
+    private boolean sending;
+    private FileChannelHelper fileChannelHelper;
+
+    // Bytes which the sender may still send before the receiver grants more.
+    private AtomicLong window;
+
+    // Bytes which the receiver has written since it has granted the window the last time.
+    private long received;
+
+    // End of the chunks which the receiver has accepted, the file position follows once they are written.
+    private long accepted;
+
+    // The chunk which has been read ahead, and whether a disk thread is reading one.
+    private boolean readAhead;
+    private volatile PooledBuffer ahead;
+    private boolean reading;
+
+    // Set once the file has been closed, a cancelled sender may still be asked for a chunk.
+    private boolean closed;
+
+    /**
+     * @param id the id of the stream, unique on the connection.
+     * @param sending true if the file is sent, false if it is received.
+     * @param fileChannelHelper the file, whose position and size are the range which is streamed.
+     */
+    public FileStream(long id, boolean sending, FileChannelHelper fileChannelHelper) {
+        this(id, sending, fileChannelHelper, false);
+    }
+
+    /**
+     * @param id the id of the stream, unique on the connection.
+     * @param sending true if the file is sent, false if it is received.
+     * @param fileChannelHelper the file, whose position and size are the range which is streamed.
+     * @param readAhead true if the sender does not read a file which is not mapped on the writing thread.
+     */
+    public FileStream(long id, boolean sending, FileChannelHelper fileChannelHelper, boolean readAhead) {
+        this.id = id;
+        this.sending = sending;
+        this.fileChannelHelper = fileChannelHelper;
+        this.window = new AtomicLong(Constants.STREAM_WINDOW);
+        this.accepted = fileChannelHelper.getPosition();
+        this.readAhead = sending && readAhead && fileChannelHelper.getMappedFile() == null;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isSending() {
+        return sending;
+    }
+
+    public FileChannelHelper getFileChannelHelper() {
+        return fileChannelHelper;
+    }
+
+    public boolean isComplete() {
+        return fileChannelHelper.isComplete();
+    }
+
+    /**
+     * Check whether the sender has data which it may send.
+     * @return true if a chunk can be taken.
+     */
+    public boolean isReady() {
+        if (readAhead) {
+            return ahead != null;
+        }
+
+        return sending && window.get() > 0 && !isComplete();
+    }
+
+    /**
+     * Let the sender send more bytes. Called when the receiver grants them.
+     * @param bytes the number of bytes.
+     */
+    public void addWindow(long bytes) {
+        window.addAndGet(bytes);
+    }
+
+    /**
+     * Take the next chunk of the file in a STREAM_DATA frame. A sender which reads ahead hands out the chunk
+     * which has been read, the others read it now.
+     * @param pool the pool of the frame.
+     * @return the frame which must be released, or null if the window is closed, the file has been sent, the
+     * stream has been closed or no chunk has been read ahead.
+     * @throws IOException
+     */
+    public PooledBuffer nextChunk(BufferPool pool) throws IOException {
+        if (readAhead) {
+            synchronized (this) {
+                PooledBuffer chunk = ahead;
+                ahead = null;
+
+                return chunk;
+            }
+        }
+
+        return readChunk(pool);
+    }
+
+    /**
+     * Check whether a chunk should be read ahead, and if so mark that it is being read.
+     * @return true if the caller has to call readAhead.
+     */
+    public synchronized boolean startReadAhead() {
+        if (!readAhead || closed || reading || ahead != null || window.get() <= 0 || isComplete()) {
+            return false;
+        }
+
+        reading = true;
+
+        return true;
+    }
+
+    /**
+     * Read the next chunk ahead. Called on a disk thread after startReadAhead.
+     * @param pool the pool of the frame.
+     * @throws IOException
+     */
+    public void readAhead(BufferPool pool) throws IOException {
+        PooledBuffer chunk = null;
+
+        try {
+            chunk = readChunk(pool);
+        }
+        finally {
+            synchronized (this) {
+                reading = false;
+
+                if (closed && chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                }
+                ahead = chunk;
+            }
+        }
+    }
+
+    /**
+     * Read the next chunk of the file into a STREAM_DATA frame. The range is taken under the lock, the file
+     * is read outside of it so cancelling the stream does not wait for the disk.
+     * @param pool the pool of the frame.
+     * @return the frame which must be released, or null if there is nothing to send.
+     * @throws IOException
+     */
+    private PooledBuffer readChunk(BufferPool pool) throws IOException {
+        long position;
+        int length;
+        MappedFile mappedFile;
+
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+
+            position = fileChannelHelper.getPosition();
+            length = (int) Math.min(Constants.STREAM_CHUNK_SIZE,
+                    Math.min(window.get(), fileChannelHelper.getSize() - position));
+
+            if (length <= 0) {
+                return null;
+            }
+
+            mappedFile = fileChannelHelper.getMappedFile();
+            fileChannelHelper.incrementPosition(length);
+            window.addAndGet(-length);
+        }
+
+        PooledBuffer frame = Protocol.encodeData(id, length, pool);
+        ByteBuffer buffer = frame.getBuffer();
+
+        try {
+            if (mappedFile != null) {
+                buffer.put(mappedFile.slice(position, length));
+            }
+            else {
+                FileChannel fileChannel = fileChannelHelper.getFileChannel();
+
+                while (buffer.hasRemaining()) {
+                    int read = fileChannel.read(buffer, position + length - buffer.remaining());
+
+                    if (read < 0) {
+                        throw new EOFException("The file has been truncated");
+                    }
+                }
+            }
+        }
+        catch (IOException exception) {
+            frame.release();
+
+            // A stream which has been cancelled has closed its file meanwhile.
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+            }
+            throw exception;
+        }
+
+        buffer.flip();
+
+        return frame;
+    }
+
+    /**
+     * Write a chunk which has been received to the file.
+     * @param data the data of a STREAM_DATA frame.
+     * @return the number of bytes written.
+     * @throws IOException if the sender has sent more than it may.
+     */
+    public int receive(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+
+        write(data, accept(length));
+        written(length);
+
+        return length;
+    }
+
+    /**
+     * Take a chunk which has been received, before it is written. Called on the reading thread.
+     * @param length the length of the chunk.
+     * @return the position of the chunk in the file.
+     * @throws IOException if the sender has sent more than it may.
+     */
+    public long accept(int length) throws IOException {
+        if (length > window.get() || length > fileChannelHelper.getSize() - accepted) {
+            throw new IOException("Stream " + id + " has sent more than it may");
+        }
+
+        long position = accepted;
+        accepted += length;
+        window.addAndGet(-length);
+
+        return position;
+    }
+
+    /**
+     * Write a chunk which has been accepted. The chunks must be written in the order of their acceptance.
+     * @param data the chunk.
+     * @param position the position of the chunk in the file.
+     * @throws IOException
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        long end = position + data.remaining();
+
+        while (data.hasRemaining()) {
+            position += fileChannelHelper.getFileChannel().write(data, position);
+        }
+
+        fileChannelHelper.setPosition(end);
+    }
+
+    /**
+     * Count a chunk which has been written, so it is granted again. Called on the reading thread.
+     * @param length the length of the chunk.
+     */
+    public void written(int length) {
+        received += length;
+    }
+
+    /**
+     * Grant the sender the bytes which have been received, once they are half of the window so a grant does
+     * not follow every chunk.
+     * @return the number of bytes to send in a STREAM_WINDOW message, 0 if none.
+     */
+    public long takeGrant() {
+        if (received < Constants.STREAM_WINDOW / 2 || isComplete()) {
+            return 0;
+        }
+
+        long grant = received;
+        received = 0;
+        window.addAndGet(grant);
+
+        return grant;
+    }
+
+    /**
+     * Close the file. A received file stays partial.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+
+        if (ahead != null) {
+            ahead.release();
+            ahead = null;
+        }
+        fileChannelHelper.close();
+    }
+}
@@ -0,0 +1,102 @@
+package bg.sap.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The file streams of a connection by their ids. The streams which send take turns a chunk at a time, so a
+ * large file does not hold back a small one.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class FileStreams {
+    private ConcurrentHashMap<Long, FileStream> streams;
+
+    // The sending streams in the order of their turns, a removed stream is dropped when its turn comes.
+    private Queue<FileStream> senders;
+
+    public FileStreams() {
+        this.streams = new ConcurrentHashMap<Long, FileStream>();
+        this.senders = new ConcurrentLinkedQueue<FileStream>();
+    }
+
+    /**
+     * Add a stream.
+     * @param stream the stream.
+     * @return false if the id is in use.
+     */
+    public boolean add(FileStream stream) {
+        if (streams.putIfAbsent(stream.getId(), stream) != null) {
+            return false;
+        }
+
+        if (stream.isSending()) {
+            senders.add(stream);
+        }
+
+        return true;
+    }
+
+    public FileStream get(long id) {
+        return streams.get(id);
+    }
+
+    public FileStream remove(long id) {
+        return streams.remove(id);
+    }
+
+    public boolean contains(long id) {
+        return streams.containsKey(id);
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    /**
+     * Get the stream whose turn it is to send. Called by the writer of the connection.
+     * @return the stream, or null if no stream may send.
+     */
+    public FileStream nextReady() {
+        for (int i = senders.size(); i > 0; i--) {
+            FileStream stream = senders.poll();
+
+            if (stream == null) {
+                break;
+            }
+
+            if (streams.get(stream.getId()) != stream) {
+                continue;
+            }
+
+            senders.add(stream);
+
+            if (stream.isReady()) {
+                return stream;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove all streams, e.g. when the connection is closed.
+     * @return the streams.
+     */
+    public List<FileStream> removeAll() {
+        List<FileStream> removed = new ArrayList<FileStream>();
+
+        for (Long id : streams.keySet()) {
+            FileStream stream = streams.remove(id);
+
+            if (stream != null) {
+                removed.add(stream);
+            }
+        }
+        senders.clear();
+
+        return removed;
+    }
+}
@@ -0,0 +1,82 @@
+package bg.sap.utils;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file of the file cache, mapped into memory with a reference count. The cache holds a reference while the
+ * file is cached, every download which sends from the mapping holds another one. The mapping stays valid
+ * after the file has been replaced, a running download sends the old content to its end.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class MappedFile {
+    private File file;
+    private ByteBuffer buffer;
+    private long lastModified;
+    private FileCache cache;
+    private AtomicInteger references;
+
+    MappedFile(File file, ByteBuffer buffer, long lastModified, FileCache cache) {
+        this.file = file;
+        this.buffer = buffer;
+        this.lastModified = lastModified;
+        this.cache = cache;
+        this.references = new AtomicInteger(1);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return buffer.capacity();
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Get a part of the file to write to a channel.
+     * @param position the position of the part in the file.
+     * @param length the length of the part.
+     * @return a view of the mapping with its own position and limit.
+     */
+    public ByteBuffer slice(long position, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) position + length).position((int) position);
+
+        return slice;
+    }
+
+    /**
+     * Add a reference. Called by the cache while the file is cached, so the count is never zero.
+     */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Check whether a download uses the mapping besides the cache.
+     * @return true if more than one reference is held.
+     */
+    boolean isShared() {
+        return references.get() > 1;
+    }
+
+    /**
+     * Release a reference. The mapping is left to the garbage collector after the last one.
+     * @throws IllegalStateException if the file has already been released.
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+
+        if (left == 0) {
+            cache.unmapped(this);
+        }
+        else if (left < 0) {
+            throw new IllegalStateException("Mapped file released twice");
+        }
+    }
+}
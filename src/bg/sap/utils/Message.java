@@ -0,0 +1,61 @@
+package bg.sap.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @Created by Terrax on 18.10.2026.
+ */
+public class Message {
+    private byte opcode;
+    private Object[] fields;
+
+    public Message(byte opcode, Object... fields) {
+        this.opcode = opcode;
+        this.fields = fields;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    public Object getField(int index) {
+        return fields[index];
+    }
+
+    public String getString(int index) {
+        return (String) fields[index];
+    }
+
+    public long getLong(int index) {
+        return (Long) fields[index];
+    }
+
+    public ByteBuffer getBytes(int index) {
+        return (ByteBuffer) fields[index];
+    }
+
+    /**
+     * Get an optional long field, which older peers may not send.
+     * @param index the index of the field.
+     * @param defaultValue the value if the field is missing.
+     * @return the value of the field or the default value.
+     */
+    public long getLong(int index, long defaultValue) {
+        return index < fields.length ? (Long) fields[index] : defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("Message[").append(opcode);
+
+        for (Object field : fields) {
+            stringBuilder.append(", ").append(field);
+        }
+
+        return stringBuilder.append("]").toString();
+    }
+}
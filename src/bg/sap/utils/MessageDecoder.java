@@ -0,0 +1,245 @@
+package bg.sap.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffer of the data received on a connection, which splits it into messages. The buffer is a direct buffer
+ * of a pool, so the socket reads straight into it, and goes back to the pool with release().
+ * @Created by Terrax on 18.10.2026.
+ */
+public class MessageDecoder {
+    private static final ByteBuffer RELEASED = ByteBuffer.allocate(0);
+
+    private BufferPool pool;
+    private PooledBuffer pooled;
+
+    // The buffer stays in write mode, the unconsumed data lies between start and position.
+    private ByteBuffer buffer;
+    private int start;
+    private int scanPosition;
+
+    public MessageDecoder() {
+        this(BufferPool.getDefault());
+    }
+
+    public MessageDecoder(BufferPool pool) {
+        this.pool = pool;
+        this.pooled = pool.acquire(Constants.BUFFER_SIZE);
+        this.buffer = pooled.getBuffer();
+        this.start = 0;
+        this.scanPosition = 0;
+    }
+
+    /**
+     * Read what the channel currently holds into the free space of the buffer. The buffer is only compacted
+     * or grown when it is full, so file data which follows an upload command is left in the socket.
+     * @param channel the channel to read from.
+     * @return the number of bytes read or -1 if the end of the stream has been reached.
+     * @throws IOException
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        if (pooled == null) {
+            throw new IOException("Decoder has been released");
+        }
+
+        if (!buffer.hasRemaining()) {
+            makeRoom();
+        }
+
+        return channel.read(buffer);
+    }
+
+    /**
+     * Get the next complete message from the buffer.
+     * @return the message without the trailing new line or null if no complete message is buffered.
+     */
+    public String nextMessage() {
+        int end = buffer.position();
+
+        for (int i = scanPosition; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                String message = Protocol.getString(buffer, start, i - start);
+
+                start = i + 1;
+                scanPosition = start;
+                resetIfEmpty();
+
+                return message;
+            }
+        }
+
+        scanPosition = end;
+
+        return null;
+    }
+
+    /**
+     * Check which protocol the peer speaks by looking at the first bytes of the connection.
+     * @return 1 for the binary protocol (the magic bytes are consumed), 0 for the text protocol
+     * or -1 if more data is needed.
+     * @throws IOException if the magic bytes are malformed or of an unsupported version.
+     */
+    public int detectProtocol() throws IOException {
+        int available = buffer.position() - start;
+        if (available == 0) {
+            return -1;
+        }
+
+        if (buffer.get(start) != Protocol.MAGIC[0]) {
+            return 0;
+        }
+
+        if (available < Protocol.MAGIC.length) {
+            return -1;
+        }
+
+        for (int i = 1; i < Protocol.MAGIC.length; i++) {
+            if (buffer.get(start + i) != Protocol.MAGIC[i]) {
+                throw new IOException("Unsupported protocol");
+            }
+        }
+
+        consume(Protocol.MAGIC.length);
+
+        return 1;
+    }
+
+    /**
+     * Get the next complete binary frame from the buffer.
+     * @return the decoded message or null if no complete frame is buffered.
+     * @throws IOException if the frame is malformed or too long.
+     */
+    public Message nextFrame() throws IOException {
+        int available = buffer.position() - start;
+        if (available < Protocol.LENGTH_SIZE) {
+            return null;
+        }
+
+        int length = buffer.getInt(start);
+        if (length <= 0 || length > Constants.MAX_MESSAGE_SIZE - Protocol.LENGTH_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+
+        if (available < Protocol.LENGTH_SIZE + length) {
+            return null;
+        }
+
+        Message message = Protocol.decode(buffer, start + Protocol.LENGTH_SIZE, length);
+
+        consume(Protocol.LENGTH_SIZE + length);
+
+        return message;
+    }
+
+    /**
+     * Check if there are buffered bytes which are not consumed yet.
+     * @return true if there is pending data, false otherwise.
+     */
+    public boolean hasPending() {
+        return buffer.position() > start;
+    }
+
+    /**
+     * Write the buffered bytes which follow the last message into a file, e.g. the beginning of an upload.
+     * @param fileChannel the file channel to write to.
+     * @param position the position in the file.
+     * @param limit the maximum number of bytes to write.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public int drainTo(FileChannel fileChannel, long position, long limit) throws IOException {
+        int length = (int) Math.min(buffer.position() - start, limit);
+
+        ByteBuffer pending = buffer.duplicate();
+        pending.limit(start + length).position(start);
+        while (pending.hasRemaining()) {
+            position += fileChannel.write(pending, position);
+        }
+
+        consume(length);
+
+        return length;
+    }
+
+    /**
+     * Copy the buffered bytes which follow the last message into a buffer, e.g. the beginning of an upload.
+     * @param target the buffer to fill, up to its limit.
+     * @return the number of bytes copied.
+     */
+    public int drainTo(ByteBuffer target) {
+        int length = Math.min(buffer.position() - start, target.remaining());
+
+        ByteBuffer pending = buffer.duplicate();
+        pending.limit(start + length).position(start);
+        target.put(pending);
+
+        consume(length);
+
+        return length;
+    }
+
+    /**
+     * Give the buffer back to the pool. The decoder holds no data afterwards and can not read any more.
+     * Called by the thread which reads the connection, when it is closed.
+     */
+    public void release() {
+        if (pooled != null) {
+            pooled.release();
+            pooled = null;
+            buffer = RELEASED;
+            start = 0;
+            scanPosition = 0;
+        }
+    }
+
+    /**
+     * Mark bytes at the beginning of the pending data as consumed.
+     * @param length the number of bytes.
+     */
+    private void consume(int length) {
+        start += length;
+        scanPosition = Math.max(scanPosition, start);
+        resetIfEmpty();
+    }
+
+    /**
+     * Compact the consumed bytes or grow the buffer when a message does not fit.
+     * @throws IOException
+     */
+    private void makeRoom() throws IOException {
+        if (start > 0) {
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+
+            scanPosition -= start;
+            start = 0;
+        }
+        else if (buffer.capacity() < Constants.MAX_MESSAGE_SIZE) {
+            PooledBuffer bigger = pool.acquire(Math.min(buffer.capacity() * 2, Constants.MAX_MESSAGE_SIZE));
+            buffer.flip();
+            bigger.getBuffer().put(buffer);
+
+            pooled.release();
+            pooled = bigger;
+            buffer = bigger.getBuffer();
+        }
+        else {
+            throw new IOException("Message exceeds " + Constants.MAX_MESSAGE_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Rewind the buffer once all data has been consumed.
+     */
+    private void resetIfEmpty() {
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+            scanPosition = 0;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package bg.sap.utils;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @Created by Terrax on 15.3.2015.
@@ -14,88 +17,332 @@ import java.nio.charset.Charset;
 public class OperationHandler {
 
     /**
-     * Read data from the a selection key.
-     * @param socketChannel the channel from which the data was sent.
-     * @return the message that is in the channel.
+     * Send data on a socket channel.
+     * @param socketChannel the channel on which to send the data.
+     * @param data the data to send.
      * @throws IOException
      */
-    public static String readData(SocketChannel socketChannel) throws IOException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(Constants.SINGLE_BYTE);
+    public static void sendData(SocketChannel socketChannel, String data) throws IOException {
+        write(socketChannel, encode(data, BufferPool.getDefault()));
+    }
 
-        StringBuilder stringBuilder = new StringBuilder();
+    /**
+     * Encode a message as a new line terminated UTF-8 buffer.
+     * @param data the message to encode.
+     * @return a buffer ready to be written.
+     */
+    public static ByteBuffer encode(String data) {
+        data += "\n";
 
-        // Read byte-by-byte until \n is reached.
-        for (int i = 0; i < Constants.BUFFER_SIZE; i++) {
-            socketChannel.read(byteBuffer);
-            byteBuffer.flip();
+        return ByteBuffer.wrap(data.getBytes(Charset.forName(Constants.UTF_ENCODING)));
+    }
 
-            String temp = new String(byteBuffer.array(), Charset.forName(Constants.UTF_ENCODING));
+    /**
+     * Encode a message as a new line terminated UTF-8 buffer of a pool.
+     * @param data the message to encode.
+     * @param pool the pool to take the buffer from.
+     * @return a buffer ready to be written, which must be released.
+     */
+    public static PooledBuffer encode(String data, BufferPool pool) {
+        PooledBuffer pooled = pool.acquire(Protocol.utf8Length(data) + 1);
+        ByteBuffer buffer = pooled.getBuffer();
+        Protocol.putUtf8(buffer, data);
+        buffer.put((byte) '\n');
+        buffer.flip();
 
-            if (temp.equals("\n")) break;
-            else stringBuilder.append(temp);
-        }
+        return pooled;
+    }
 
-        return stringBuilder.toString();
+    /**
+     * Announce the binary protocol on a newly connected channel.
+     * @param socketChannel the channel to the server.
+     * @throws IOException
+     */
+    public static void sendHandshake(SocketChannel socketChannel) throws IOException {
+        socketChannel.write(ByteBuffer.wrap(Protocol.MAGIC));
     }
 
     /**
-     * Send data on a socket channel.
+     * Send a message on a socket channel in the binary protocol.
+     * @param socketChannel the channel on which to send the message.
+     * @param message the message to send.
+     * @throws IOException
+     */
+    public static void sendMessage(SocketChannel socketChannel, Message message) throws IOException {
+        write(socketChannel, Protocol.encode(message, BufferPool.getDefault()));
+    }
+
+    /**
+     * Write a buffer of a pool to a channel and release it.
      * @param socketChannel the channel on which to send the data.
-     * @param data the data to send.
+     * @param buffer the data to send.
      * @throws IOException
      */
-    public static void sendData(SocketChannel socketChannel, String data) throws IOException {
-        data += "\n";
+    private static void write(SocketChannel socketChannel, PooledBuffer buffer) throws IOException {
+        try {
+            socketChannel.write(buffer.getBuffer());
+        }
+        finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Send the next fragment of a file to a channel without blocking.
+     * The file is closed once the whole file has been sent.
+     * @param socketChannel the channel on which to send the file.
+     * @param fileChannelHelper the file channel with the file's size and the position reached so far.
+     * @return the number of bytes sent, 0 if the socket is full.
+     * @throws IOException
+     */
+    public static long sendFile(SocketChannel socketChannel, FileChannelHelper fileChannelHelper) throws IOException {
+        MappedFile mappedFile = fileChannelHelper.getMappedFile();
+
+        long position = fileChannelHelper.getPosition();
+        long left = fileChannelHelper.getSize() - position;
 
-        ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(Charset.forName(Constants.UTF_ENCODING)));
+        long sentBytes = 0;
+        if (left > 0) {
+            int length = (int) Math.min(left, Constants.FILE_FRAGMENT_SIZE);
 
-        socketChannel.write(buffer);
+            // A cached file is written from its mapping, which is already in memory.
+            if (mappedFile != null) {
+                sentBytes = socketChannel.write(mappedFile.slice(position, length));
+            }
+            else {
+                sentBytes = fileChannelHelper.getFileChannel().transferTo(position, length, socketChannel);
+            }
+            fileChannelHelper.incrementPosition(sentBytes);
+        }
+
+        // Close the file channel if all data has been sent.
+        if (fileChannelHelper.getPosition() >= fileChannelHelper.getSize()) {
+            fileChannelHelper.close();
+        }
+
+        return sentBytes;
     }
 
     /**
-     * Send file to a channel.
-     * @param selectedFile the file to be sent.
-     * @param fileSendingChannel the channel on which to send the file.
-     * @throws IOException
+     * Read the next fragment of a file which is sent to a client, so a disk thread reads the file and the
+     * reactor only writes the socket. Close the file channel once all data has been read.
+     * @param fileChannelHelper the file with the position of the fragment.
+     * @param pool the pool of the fragment.
+     * @return the fragment which must be released.
+     * @throws IOException if the file can not be read or has been truncated.
+     */
+    public static PooledBuffer readFile(FileChannelHelper fileChannelHelper, BufferPool pool) throws IOException {
+        long position = fileChannelHelper.getPosition();
+        int length = (int) Math.min(fileChannelHelper.getSize() - position, Constants.DISK_FRAGMENT_SIZE);
+
+        PooledBuffer fragment = pool.acquire(length);
+        ByteBuffer buffer = fragment.getBuffer();
+
+        try {
+            while (buffer.hasRemaining()) {
+                if (fileChannelHelper.getFileChannel().read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("The file has been truncated");
+                }
+            }
+        }
+        catch (IOException exception) {
+            fragment.release();
+            throw exception;
+        }
+
+        buffer.flip();
+        fileChannelHelper.incrementPosition(length);
+
+        if (fileChannelHelper.isComplete()) {
+            fileChannelHelper.close();
+        }
+
+        return fragment;
+    }
+
+    /**
+     * Get a file of the server by the name which a client has sent. The name must not leave the file
+     * directory, so it may not contain a path, and must not be the partial file of a running transfer.
+     * @param name the name of the file.
+     * @return the file in the file directory.
+     * @throws IOException if the name is empty, contains a path or ends with the partial suffix.
+     */
+    public static File getServerFile(String name) throws IOException {
+        if (name.isEmpty() || name.contains("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+                || name.indexOf(':') >= 0 || name.indexOf(File.separatorChar) >= 0 || name.indexOf('\0') >= 0
+                || name.endsWith(Constants.PARTIAL_SUFFIX)) {
+            throw new IOException("Invalid file name " + name);
+        }
+
+        return new File(Constants.FILE_DIR + name);
+    }
+
+    /**
+     * Get the partial file in which a transfer is stored until it is complete.
+     * @param file the complete file.
+     * @return the partial file.
      */
-    public static void sendFile(File selectedFile, SocketChannel fileSendingChannel) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(selectedFile);
-        FileChannel fileChannel = fileInputStream.getChannel();
+    public static File getPartialFile(File file) {
+        return new File(file.getPath() + Constants.PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Get the file which a partial file becomes once the transfer is complete.
+     * @param partialFile the partial file.
+     * @return the complete file.
+     */
+    public static File getCompleteFile(File partialFile) {
+        String path = partialFile.getPath();
 
-        // Send the upload command, file name and file size.
-        sendData(fileSendingChannel, Constants.FILE_UPLOAD + "-" + selectedFile.getName() + "-" + fileChannel.size());
+        return new File(path.substring(0, path.length() - Constants.PARTIAL_SUFFIX.length()));
+    }
+
+    /**
+     * Open the partial file of a transfer, keeping the data received so far.
+     * @param file the complete file.
+     * @param size the size of the complete file.
+     * @param offset the position from which the transfer continues, 0 to start over.
+     * @return the file channel positioned at the offset.
+     * @throws IOException if the partial file holds less data than the offset.
+     */
+    public static FileChannelHelper openPartialFile(File file, long size, long offset) throws IOException {
+        File partialFile = getPartialFile(file);
+        FileChannel fileChannel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
 
-        // Send the date.
-        long size = fileChannel.size();
-        long position = 0;
-        while (position < size) {
-            position += fileChannel.transferTo(position, Constants.FILE_FRAGMENT_SIZE, fileSendingChannel);
+        if (offset > fileChannel.size()) {
+            fileChannel.close();
+            throw new IOException("Cannot resume " + file.getName() + " at " + offset);
         }
 
-        // Close the channel.
-        fileSendingChannel.close();
+        // Drop whatever lies behind the offset, it will be sent again.
+        fileChannel.truncate(offset);
+
+        return new FileChannelHelper(partialFile, size, offset, fileChannel);
+    }
+
+    /**
+     * Move a completely received partial file to its final name.
+     * @param fileChannelHelper the finished transfer.
+     * @return the complete file.
+     * @throws IOException
+     */
+    public static File completePartialFile(FileChannelHelper fileChannelHelper) throws IOException {
+        File partialFile = fileChannelHelper.getFile();
+        File file = getCompleteFile(partialFile);
+
+        Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return file;
     }
 
     /**
      * Download a file from a socket channel.
      * @param key the key with the data.
-     * @param fileChannelHelper the file channel with the file's size.
+     * @param decoder the decoder of the channel which may still hold file data.
+     * @param fileChannelHelper the file channel with the file's size, or the end of the range.
+     * @return true if the whole file has been received and closed, false otherwise.
+     * @throws IOException
+     */
+    public static boolean getFile(SelectionKey key, MessageDecoder decoder, FileChannelHelper fileChannelHelper) throws IOException {
+        return getFile((SocketChannel) key.channel(), decoder, fileChannelHelper);
+    }
+
+    /**
+     * Download a file from a socket channel, which may be blocking.
+     * @param socketChannel the channel with the data, it is closed with the last byte.
+     * @param decoder the decoder of the channel which may still hold file data.
+     * @param fileChannelHelper the file channel with the file's size, or the end of the range.
+     * @return true if the whole file has been received and closed, false otherwise.
+     * @throws IOException
+     */
+    public static boolean getFile(SocketChannel socketChannel, MessageDecoder decoder, FileChannelHelper fileChannelHelper) throws IOException {
+        if (!receiveFile(socketChannel, decoder, fileChannelHelper)) {
+            return false;
+        }
+
+        return finishFile(fileChannelHelper);
+    }
+
+    /**
+     * Store the next part of a file from a socket channel, without forcing or closing the file.
+     * @param socketChannel the channel with the data, it is closed with the last byte.
+     * @param decoder the decoder of the channel which may still hold file data.
+     * @param fileChannelHelper the file channel with the file's size, or the end of the range.
+     * @return true if the last byte of the file or the range has been stored.
      * @throws IOException
      */
-    public static void getFile(SelectionKey key, FileChannelHelper fileChannelHelper) throws IOException {
+    public static boolean receiveFile(SocketChannel socketChannel, MessageDecoder decoder, FileChannelHelper fileChannelHelper) throws IOException {
         FileChannel fileChannel = fileChannelHelper.getFileChannel();
-        SocketChannel socketChannel = (SocketChannel) key.channel();
+        FileAssembly assembly = fileChannelHelper.getAssembly();
 
-        long readBytes = fileChannel.transferFrom(socketChannel, fileChannelHelper.getPosition(), Constants.FILE_FRAGMENT_SIZE);
+        long position = fileChannelHelper.getPosition();
+        long left = fileChannelHelper.getSize() - position;
+
+        // Bytes which arrived together with the upload command are still in the decoder.
+        long readBytes;
+        if (decoder.hasPending()) {
+            readBytes = decoder.drainTo(fileChannel, position, left);
+        }
+        else {
+            readBytes = fileChannel.transferFrom(socketChannel, position, Math.min(left, Constants.FILE_FRAGMENT_SIZE));
+        }
         fileChannelHelper.incrementPosition(readBytes);
 
-        // Close the file channel if all data has been sent.
-        if (fileChannelHelper.getPosition() >= fileChannelHelper.getSize()) {
-            fileChannel.force(false);
-            key.cancel();
+        if (assembly != null) {
+            assembly.addReceived(readBytes);
+        }
 
-            fileChannel.close();
-            socketChannel.close();
+        if (!fileChannelHelper.isComplete()) {
+            return false;
         }
+
+        // Close the socket channel if all data has been sent, which cancels its keys.
+        socketChannel.close();
+
+        return true;
+    }
+
+    /**
+     * Store a fragment of a file which the reactor has read from the socket, without forcing or closing the
+     * file. Called on a disk thread.
+     * @param fileChannelHelper the file channel with the position of the fragment.
+     * @param data the fragment.
+     * @throws IOException
+     */
+    public static void writeFile(FileChannelHelper fileChannelHelper, ByteBuffer data) throws IOException {
+        FileChannel fileChannel = fileChannelHelper.getFileChannel();
+        FileAssembly assembly = fileChannelHelper.getAssembly();
+
+        long position = fileChannelHelper.getPosition();
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            position += fileChannel.write(data, position);
+        }
+        fileChannelHelper.incrementPosition(length);
+
+        if (assembly != null) {
+            assembly.addReceived(length);
+        }
+    }
+
+    /**
+     * Force a received file to the disk and close it. This blocks, so the server does it off the reactor.
+     * @param fileChannelHelper the file channel whose last byte has been stored.
+     * @return true if the whole file has been received and closed, false if other ranges are missing.
+     * @throws IOException
+     */
+    public static boolean finishFile(FileChannelHelper fileChannelHelper) throws IOException {
+        FileAssembly assembly = fileChannelHelper.getAssembly();
+
+        // Other connections may still be writing their ranges of the file.
+        if (assembly != null) {
+            return assembly.finishRange();
+        }
+
+        FileChannel fileChannel = fileChannelHelper.getFileChannel();
+        fileChannel.force(false);
+        fileChannel.close();
+
+        return true;
     }
-}
\ No newline at end of file
+}
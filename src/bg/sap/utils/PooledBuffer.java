@@ -0,0 +1,113 @@
+package bg.sap.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer of a buffer pool with a reference count. The buffer goes back to the pool when the last reference
+ * is released, so it must not be used after release(). A buffer which is sent to several connections is
+ * shared through duplicates, each with its own position and one reference of the original.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class PooledBuffer {
+    private ByteBuffer buffer;
+    private BufferPool pool;
+    private int sizeClass;
+
+    // The original of a duplicate, which holds the reference count.
+    private PooledBuffer original;
+    private AtomicInteger references;
+    private boolean released;
+
+    // Tracks the buffer while it is used if leak detection is enabled.
+    private BufferPool.Leak leak;
+
+    PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass) {
+        this.buffer = buffer;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.references = new AtomicInteger();
+    }
+
+    private PooledBuffer(ByteBuffer buffer, PooledBuffer original) {
+        this.buffer = buffer;
+        this.original = original;
+    }
+
+    /**
+     * Wrap a buffer which does not belong to a pool, e.g. data which has been read from a file.
+     * @param buffer the buffer.
+     * @return the buffer with a reference count which ignores its release.
+     */
+    public static PooledBuffer wrap(ByteBuffer buffer) {
+        return new PooledBuffer(buffer, null, -1);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    int getSizeClass() {
+        return sizeClass;
+    }
+
+    BufferPool.Leak getLeak() {
+        return leak;
+    }
+
+    void setLeak(BufferPool.Leak leak) {
+        this.leak = leak;
+    }
+
+    /**
+     * Prepare the buffer for a new user. Called by the pool.
+     * @param size the size which has been asked for, the limit of the buffer.
+     */
+    void reset(int size) {
+        buffer.clear().limit(size);
+        references.set(1);
+    }
+
+    /**
+     * Get a duplicate with its own position and limit, which holds a reference of this buffer. The duplicate
+     * is released once, independently of this buffer.
+     * @return the duplicate, read-only.
+     */
+    public PooledBuffer duplicate() {
+        PooledBuffer target = original != null ? original : this;
+
+        if (target.pool != null) {
+            target.references.incrementAndGet();
+        }
+
+        return new PooledBuffer(buffer.asReadOnlyBuffer(), target);
+    }
+
+    /**
+     * Release a reference of the buffer.
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public void release() {
+        if (original != null) {
+            if (released) {
+                throw new IllegalStateException("Duplicate released twice");
+            }
+
+            released = true;
+            original.release();
+            return;
+        }
+
+        if (pool == null) {
+            return;
+        }
+
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            pool.recycle(this);
+        }
+        else if (left < 0) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+    }
+}
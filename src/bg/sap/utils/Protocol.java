@@ -0,0 +1,705 @@
+package bg.sap.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Binary wire protocol. A frame is a 4 byte length, a 1 byte opcode and typed fields. A client which speaks
+ * it starts the connection with the magic bytes, a connection which starts with anything else uses the old
+ * new line terminated text protocol.
+ * @Created by Terrax on 18.10.2026.
+ */
+public class Protocol {
+    private static final Charset UTF_8 = Charset.forName(Constants.UTF_ENCODING);
+
+    // Bytes of strings which are read from direct buffers.
+    private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    public static final byte VERSION = 1;
+    public static final byte[] MAGIC = {0, 'S', 'C', VERSION};
+
+    // Length of the frame length field.
+    public static final int LENGTH_SIZE = 4;
+
+    // Field types.
+    public static final byte TYPE_STRING = 1;
+    public static final byte TYPE_LONG = 2;
+    public static final byte TYPE_BYTES = 3;
+
+    // Opcodes.
+    public static final byte HELLO = 1;
+    public static final byte LOGIN = 2;
+    public static final byte LOGIN_OK = 3;
+    public static final byte INVALID_USER = 4;
+    public static final byte LOGOUT = 5;
+    public static final byte CHAT = 6;
+    public static final byte SERVER_MESSAGE = 7;
+    public static final byte FILE_UPLOAD = 8;
+    public static final byte FILE_DOWNLOAD = 9;
+    public static final byte FILE_NOT_FOUND = 10;
+    public static final byte GET_FILE_LIST = 11;
+    public static final byte FILE_LIST = 12;
+    public static final byte FILE_OFFSET = 13;
+    public static final byte FILE_INFO = 14;
+    public static final byte HISTORY = 15;
+    public static final byte HISTORY_ENTRY = 16;
+    public static final byte HISTORY_END = 17;
+    public static final byte JOIN = 18;
+    public static final byte LEAVE = 19;
+    public static final byte ROOMS = 20;
+    public static final byte ROOM_LIST = 21;
+    public static final byte ROOM_MESSAGE = 22;
+    public static final byte DIRECT = 23;
+    public static final byte DIRECT_ACK = 24;
+    public static final byte PING = 25;
+    public static final byte PONG = 26;
+    public static final byte STREAM_OPEN = 27;
+    public static final byte STREAM_DATA = 28;
+    public static final byte STREAM_WINDOW = 29;
+    public static final byte STREAM_END = 30;
+
+    // Outcomes of a direct message which DIRECT_ACK reports.
+    public static final long DIRECT_FAILED = 0;
+    public static final long DIRECT_DELIVERED = 1;
+    public static final long DIRECT_STORED = 2;
+
+    // Directions of a file stream, seen from the client.
+    public static final long STREAM_UPLOAD = 0;
+    public static final long STREAM_DOWNLOAD = 1;
+
+    // Outcomes of a file stream which STREAM_END reports.
+    public static final long STREAM_OK = 0;
+    public static final long STREAM_FAILED = 1;
+    public static final long STREAM_NOT_FOUND = 2;
+
+    // Size of a STREAM_DATA frame without its data: length, opcode, stream id and the header of the bytes.
+    public static final int DATA_HEADER_SIZE = LENGTH_SIZE + 1 + 9 + 5;
+
+    // Types of the fields of every opcode in both directions, S for a string, L for a long and B for bytes.
+    // The fields behind a '|' are optional and may be left out from the end, a '*' repeats them as a group
+    // like the entries of a list.
+    private static final String[] FIELDS = new String[STREAM_END + 1];
+
+    static {
+        FIELDS[HELLO] = "L";
+        FIELDS[LOGIN] = "SS";
+        FIELDS[LOGIN_OK] = "S";
+        FIELDS[INVALID_USER] = "";
+        FIELDS[LOGOUT] = "";
+        FIELDS[CHAT] = "S|SL";
+        FIELDS[SERVER_MESSAGE] = "S";
+        FIELDS[FILE_UPLOAD] = "SL|LL";
+        FIELDS[FILE_DOWNLOAD] = "S|LL";
+        FIELDS[FILE_NOT_FOUND] = "S";
+        FIELDS[GET_FILE_LIST] = "|SSL";
+        FIELDS[FILE_LIST] = "L|*SLL";
+        FIELDS[FILE_OFFSET] = "S|L";
+        FIELDS[FILE_INFO] = "S|L";
+        FIELDS[HISTORY] = "L|L";
+        FIELDS[HISTORY_ENTRY] = "LLSS";
+        FIELDS[HISTORY_END] = "L";
+        FIELDS[JOIN] = "S|L";
+        FIELDS[LEAVE] = "S";
+        FIELDS[ROOMS] = "";
+        FIELDS[ROOM_LIST] = "|*SL";
+        FIELDS[ROOM_MESSAGE] = "SS|S";
+        FIELDS[DIRECT] = "SS";
+        FIELDS[DIRECT_ACK] = "SL";
+        FIELDS[PING] = "";
+        FIELDS[PONG] = "";
+        FIELDS[STREAM_OPEN] = "LLSLL";
+        FIELDS[STREAM_DATA] = "LB";
+        FIELDS[STREAM_WINDOW] = "LL";
+        FIELDS[STREAM_END] = "LL";
+    }
+
+    /**
+     * Encode a message as a binary frame.
+     * @param message the message to encode.
+     * @return a buffer ready to be written.
+     */
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + bodyLength(message));
+        write(message, buffer);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Encode a message as a binary frame into a buffer of a pool.
+     * @param message the message to encode.
+     * @param pool the pool to take the buffer from.
+     * @return a buffer ready to be written, which must be released.
+     */
+    public static PooledBuffer encode(Message message, BufferPool pool) {
+        PooledBuffer pooled = pool.acquire(LENGTH_SIZE + bodyLength(message));
+        ByteBuffer buffer = pooled.getBuffer();
+
+        try {
+            write(message, buffer);
+        }
+        catch (RuntimeException exception) {
+            pooled.release();
+            throw exception;
+        }
+        buffer.flip();
+
+        return pooled;
+    }
+
+    /**
+     * Encode a message for a connection in the binary or in the text protocol.
+     * @param message the message to encode.
+     * @param binary true for the binary protocol, false for the text protocol.
+     * @return a buffer ready to be written or null if the message has no text representation.
+     */
+    public static ByteBuffer encode(Message message, boolean binary) {
+        if (binary) {
+            return encode(message);
+        }
+
+        String text = formatText(message);
+
+        return text == null ? null : OperationHandler.encode(text);
+    }
+
+    /**
+     * Encode a message for a connection in the binary or in the text protocol into a buffer of a pool.
+     * @param message the message to encode.
+     * @param binary true for the binary protocol, false for the text protocol.
+     * @param pool the pool to take the buffer from.
+     * @return a buffer ready to be written, which must be released, or null if the message has no text
+     * representation.
+     */
+    public static PooledBuffer encode(Message message, boolean binary, BufferPool pool) {
+        if (binary) {
+            return encode(message, pool);
+        }
+
+        String text = formatText(message);
+
+        return text == null ? null : OperationHandler.encode(text, pool);
+    }
+
+    /**
+     * Start a STREAM_DATA frame in a buffer of a pool. The data is put behind the header, the frame is ready
+     * once the buffer is full and flipped.
+     * @param streamId the id of the file stream.
+     * @param length the number of bytes of data.
+     * @param pool the pool to take the buffer from.
+     * @return the buffer positioned at the data, which must be released.
+     */
+    public static PooledBuffer encodeData(long streamId, int length, BufferPool pool) {
+        PooledBuffer pooled = pool.acquire(DATA_HEADER_SIZE + length);
+        ByteBuffer buffer = pooled.getBuffer();
+
+        buffer.putInt(DATA_HEADER_SIZE - LENGTH_SIZE + length).put(STREAM_DATA);
+        buffer.put(TYPE_LONG).putLong(streamId);
+        buffer.put(TYPE_BYTES).putInt(length);
+
+        return pooled;
+    }
+
+    /**
+     * Compute the length of a frame without the length field.
+     * @param message the message.
+     * @return the number of bytes.
+     */
+    private static int bodyLength(Message message) {
+        int length = 1;
+
+        for (int i = 0; i < message.getFieldCount(); i++) {
+            Object field = message.getField(i);
+
+            if (field instanceof String) {
+                length += 1 + 2 + utf8Length((String) field);
+            }
+            else if (field instanceof ByteBuffer) {
+                length += 1 + 4 + ((ByteBuffer) field).remaining();
+            }
+            else {
+                length += 1 + 8;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Write a message as a binary frame.
+     * @param message the message to write.
+     * @param buffer the buffer with room for the whole frame.
+     * @throws IllegalArgumentException if a string does not fit into its 2 byte length.
+     */
+    private static void write(Message message, ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + LENGTH_SIZE);
+        buffer.put(message.getOpcode());
+
+        for (int i = 0; i < message.getFieldCount(); i++) {
+            Object field = message.getField(i);
+
+            if (field instanceof String) {
+                buffer.put(TYPE_STRING);
+
+                // Fill in the length once the string has been written.
+                int lengthPosition = buffer.position();
+                buffer.position(lengthPosition + 2);
+                putUtf8(buffer, (String) field);
+
+                int length = buffer.position() - lengthPosition - 2;
+                if (length > 0xFFFF) {
+                    throw new IllegalArgumentException("String field " + i + " exceeds 65535 bytes");
+                }
+                buffer.putShort(lengthPosition, (short) length);
+            }
+            else if (field instanceof ByteBuffer) {
+                ByteBuffer bytes = ((ByteBuffer) field).duplicate();
+
+                buffer.put(TYPE_BYTES);
+                buffer.putInt(bytes.remaining());
+                buffer.put(bytes);
+            }
+            else {
+                buffer.put(TYPE_LONG);
+                buffer.putLong(((Number) field).longValue());
+            }
+        }
+
+        buffer.putInt(start, buffer.position() - start - LENGTH_SIZE);
+    }
+
+    /**
+     * Compute the length of a string in UTF-8, the same way as String.getBytes() does.
+     * @param string the string.
+     * @return the number of bytes.
+     */
+    public static int utf8Length(String string) {
+        int length = 0;
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                length++;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isSurrogate(c)) {
+                // A surrogate pair takes 4 bytes, a lone surrogate is replaced by '?'.
+                if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                }
+                else {
+                    length++;
+                }
+            }
+            else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Write a string in UTF-8 without creating a byte array, the same bytes as String.getBytes() gives.
+     * @param buffer the buffer with room for the string.
+     * @param string the string.
+     */
+    public static void putUtf8(ByteBuffer buffer, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            }
+            else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                }
+                else {
+                    buffer.put((byte) '?');
+                }
+            }
+            else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Decode the body of a frame, i.e. the opcode and the fields.
+     * @param frame the body of the frame, positioned at the opcode.
+     * @return the decoded message.
+     * @throws IOException if the frame is malformed.
+     */
+    public static Message decode(ByteBuffer frame) throws IOException {
+        return decode(frame, frame.position(), frame.remaining());
+    }
+
+    /**
+     * Decode the body of a frame in a buffer without moving its position, the buffer may be direct. A bytes
+     * field is a view of the buffer, which is valid until the buffer is used again.
+     * @param buffer the buffer with the frame.
+     * @param offset the index of the opcode.
+     * @param length the length of the body.
+     * @return the decoded message.
+     * @throws IOException if the frame is malformed.
+     */
+    public static Message decode(ByteBuffer buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+
+        try {
+            byte opcode = buffer.get(offset);
+
+            // Count the fields first, so the field array is allocated only once.
+            int count = 0;
+            int position = offset + 1;
+            while (position < end) {
+                position = skipField(buffer, position);
+                count++;
+            }
+
+            if (position > end) {
+                throw new IOException("Malformed frame");
+            }
+
+            Object[] fields = new Object[count];
+            position = offset + 1;
+            for (int i = 0; i < count; i++) {
+                byte type = buffer.get(position);
+
+                if (type == TYPE_STRING) {
+                    int stringLength = buffer.getShort(position + 1) & 0xFFFF;
+                    fields[i] = getString(buffer, position + 3, stringLength);
+                    position += 3 + stringLength;
+                }
+                else if (type == TYPE_BYTES) {
+                    int bytesLength = buffer.getInt(position + 1);
+                    ByteBuffer bytes = buffer.duplicate();
+                    bytes.limit(position + 5 + bytesLength).position(position + 5);
+                    fields[i] = bytes.slice();
+                    position += 5 + bytesLength;
+                }
+                else {
+                    fields[i] = buffer.getLong(position + 1);
+                    position += 9;
+                }
+            }
+
+            checkFields(opcode, fields);
+
+            return new Message(opcode, fields);
+        }
+        catch (RuntimeException exception) {
+            throw new IOException("Malformed frame", exception);
+        }
+    }
+
+    /**
+     * Check the number and the types of the fields of a decoded frame, so the handlers of the opcodes can
+     * take the fields as they are.
+     * @param opcode the opcode of the frame.
+     * @param fields the decoded fields.
+     * @throws IOException if the opcode is unknown or the fields do not fit it.
+     */
+    private static void checkFields(byte opcode, Object[] fields) throws IOException {
+        String layout = opcode > 0 && opcode < FIELDS.length ? FIELDS[opcode] : null;
+        if (layout == null) {
+            throw new IOException("Unknown opcode " + opcode);
+        }
+
+        int bar = layout.indexOf('|');
+        int required = bar < 0 ? layout.length() : bar;
+        int optionalStart = bar < 0 ? layout.length() : bar + 1;
+        boolean repeated = optionalStart < layout.length() && layout.charAt(optionalStart) == '*';
+        if (repeated) {
+            optionalStart++;
+        }
+        int optional = layout.length() - optionalStart;
+
+        int extra = fields.length - required;
+        if (extra < 0 || (repeated ? extra % optional != 0 : extra > optional)) {
+            throw new IOException("Opcode " + opcode + " does not take " + fields.length + " fields");
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            char type = i < required ? layout.charAt(i) : layout.charAt(optionalStart + (i - required) % optional);
+
+            if (!hasType(fields[i], type)) {
+                throw new IOException("Field " + i + " of opcode " + opcode + " is not of type " + type);
+            }
+        }
+    }
+
+    private static boolean hasType(Object field, char type) {
+        switch (type) {
+            case 'S':
+                return field instanceof String;
+            case 'L':
+                return field instanceof Long;
+            default:
+                return field instanceof ByteBuffer;
+        }
+    }
+
+    /**
+     * Read a UTF-8 string from a buffer without moving its position. The bytes of a direct buffer are copied
+     * into a scratch array of the thread first.
+     * @param buffer the buffer.
+     * @param index the index of the first byte.
+     * @param length the number of bytes.
+     * @return the string.
+     */
+    public static String getString(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + index, length, UTF_8);
+        }
+
+        byte[] bytes = SCRATCH.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            SCRATCH.set(bytes);
+        }
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(index + i);
+        }
+
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    /**
+     * Skip a single field of a frame.
+     * @param buffer the buffer with the frame.
+     * @param position the index of the type of the field.
+     * @return the index after the field.
+     * @throws IOException if the type of the field is unknown.
+     */
+    private static int skipField(ByteBuffer buffer, int position) throws IOException {
+        byte type = buffer.get(position);
+
+        if (type == TYPE_STRING) {
+            return position + 3 + (buffer.getShort(position + 1) & 0xFFFF);
+        }
+        else if (type == TYPE_LONG) {
+            return position + 9;
+        }
+        else if (type == TYPE_BYTES) {
+            int length = buffer.getInt(position + 1);
+
+            if (length < 0) {
+                throw new IOException("Invalid field length " + length);
+            }
+
+            return position + 5 + length;
+        }
+
+        throw new IOException("Unknown field type " + type);
+    }
+
+    /**
+     * Translate a line of the text protocol, which is still spoken by old clients.
+     * @param data the received line.
+     * @param loggedIn true if the connection has already logged in.
+     * @return the message which the line stands for.
+     * @throws IOException if the line is a malformed command.
+     */
+    public static Message parseText(String data, boolean loggedIn) throws IOException {
+        int colon = data.indexOf(':');
+
+        if (!loggedIn && colon >= 0) {
+            String[] credentials = data.split(":");
+
+            return new Message(LOGIN, credentials.length > 0 ? credentials[0] : "",
+                    credentials.length > 1 ? credentials[1] : "");
+        }
+        else if (data.contains(Constants.LOGOUT)) {
+            return new Message(LOGOUT);
+        }
+        else if (data.contains(Constants.FILE_UPLOAD)) {
+            String[] details = data.split("-");
+
+            if (details.length < 3) {
+                throw new IOException("Malformed upload command " + data);
+            }
+
+            try {
+                return new Message(FILE_UPLOAD, details[1], Long.parseLong(details[2]));
+            }
+            catch (NumberFormatException exception) {
+                throw new IOException("Malformed upload command " + data, exception);
+            }
+        }
+        else if (data.contains(Constants.FILE_DOWNLOAD)) {
+            String[] details = data.split("-");
+
+            if (details.length < 2) {
+                throw new IOException("Malformed download command " + data);
+            }
+
+            return new Message(FILE_DOWNLOAD, details[1]);
+        }
+        else if (data.equals(Constants.GET_FILE_LIST)) {
+            return new Message(GET_FILE_LIST);
+        }
+
+        Message command = parseCommand(data);
+
+        return command != null ? command : new Message(CHAT, data);
+    }
+
+    /**
+     * Translate a command typed by the user: "/join room", "/leave room", "/rooms", "#room text" or
+     * "/msg user text".
+     * @param text the typed text.
+     * @return the message for the command or null if the text is no command.
+     */
+    public static Message parseCommand(String text) {
+        if (text.startsWith("/join ")) {
+            return new Message(JOIN, text.substring(6).trim());
+        }
+        else if (text.startsWith("/leave ")) {
+            return new Message(LEAVE, text.substring(7).trim());
+        }
+        else if (text.equals("/rooms")) {
+            return new Message(ROOMS);
+        }
+        else if (text.startsWith("/msg ")) {
+            String[] parts = text.substring(5).trim().split(" ", 2);
+
+            if (parts.length == 2) {
+                return new Message(DIRECT, parts[0], parts[1]);
+            }
+        }
+        else if (text.startsWith("#")) {
+            int space = text.indexOf(' ');
+
+            if (space > 1) {
+                return new Message(ROOM_MESSAGE, text.substring(1, space), text.substring(space + 1));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Translate a message into a line of the text protocol.
+     * @param message the message to translate.
+     * @return the line or null if the message has no text representation.
+     */
+    public static String formatText(Message message) {
+        switch (message.getOpcode()) {
+            case CHAT:
+                return message.getString(0) + ": " + message.getString(1);
+            case HISTORY_ENTRY:
+                return message.getString(2) + ": " + message.getString(3);
+            case ROOM_MESSAGE:
+                return "[#" + message.getString(0) + "] " + message.getString(1) + ": " + message.getString(2);
+            case DIRECT:
+                return "[PM] " + message.getString(0) + ": " + message.getString(1);
+            case DIRECT_ACK:
+                return formatDirectAck(message);
+            case JOIN:
+                return "You joined #" + message.getString(0) + " (" + message.getLong(1) + " members)";
+            case LEAVE:
+                return "You left #" + message.getString(0);
+            case ROOM_LIST:
+                return formatRoomList(message);
+            case SERVER_MESSAGE:
+                return message.getString(0);
+            case FILE_LIST:
+                return formatFileList(message);
+            case INVALID_USER:
+                return Constants.INVALID_USER;
+            case FILE_NOT_FOUND:
+                return Constants.FILE_NOT_FOUND;
+            case FILE_UPLOAD:
+                return Constants.FILE_UPLOAD + "-" + message.getString(0) + "-" + message.getLong(1);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Translate the outcome of a direct message.
+     * @param message the acknowledgement with the recipient and the outcome.
+     * @return the line.
+     */
+    private static String formatDirectAck(Message message) {
+        long status = message.getLong(1);
+
+        if (status == DIRECT_DELIVERED) {
+            return "[PM] Delivered to " + message.getString(0);
+        }
+        if (status == DIRECT_STORED) {
+            return "[PM] " + message.getString(0) + " is offline, the message will be delivered at login";
+        }
+
+        return "[PM] Could not deliver to " + message.getString(0);
+    }
+
+    /**
+     * Translate the list of rooms into one line per room. The list holds the name and the member count of
+     * every room.
+     * @param message the list of rooms.
+     * @return the lines.
+     */
+    private static String formatRoomList(Message message) {
+        if (message.getFieldCount() == 0) {
+            return "No rooms";
+        }
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < message.getFieldCount(); i += 2) {
+            if (i > 0) {
+                stringBuilder.append('\n');
+            }
+            stringBuilder.append('#').append(message.getString(i)).append(" (").append(message.getLong(i + 1)).append(')');
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Translate a page of the file list into one line per file. The page holds a flag which tells if more
+     * files follow and then the name, the size and the modification time of every file.
+     * @param message the page of the file list.
+     * @return the lines or null if the page is empty.
+     */
+    private static String formatFileList(Message message) {
+        if (message.getFieldCount() < 4) {
+            return null;
+        }
+
+        StringBuilder stringBuilder = new StringBuilder(message.getString(1));
+
+        for (int i = 4; i < message.getFieldCount(); i += 3) {
+            stringBuilder.append('\n').append(message.getString(i));
+        }
+
+        return stringBuilder.toString();
+    }
+}